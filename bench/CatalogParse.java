@@ -0,0 +1,136 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+import dev.benmitchell.mcpkg.packs.Pack;
+import dev.benmitchell.mcpkg.packs.PackType;
+import dev.benmitchell.mcpkg.vanillatweaks.VTCatalogReader;
+
+/**
+ * Compares the streaming catalog reader with the databind one it replaced, on the same catalog.
+ * Both are warmed up, then timed in alternating rounds so that neither gets the quieter machine.
+ * The packs from both are checked to be the same before anything is timed.
+ *
+ * Run through bench/catalog-parse.sh, which puts the mcpkg jar on the class path
+ */
+public class CatalogParse {
+    private interface Parser {
+        List<Pack> parse(byte[] catalog, PackType packType) throws IOException;
+    }
+
+    private static final int GENERATED_CATEGORIES = 40;
+    private static final int GENERATED_PACKS_PER_CATEGORY = 100;
+
+    /**
+     * Makes a catalog shaped like vanillatweaks.net's, previews, videos and warnings included
+     */
+    static byte[] generateCatalog() {
+        StringBuilder builder = new StringBuilder("{\"categories\":[");
+        for (int c = 0; c < GENERATED_CATEGORIES; c++) {
+            if (c > 0)
+                builder.append(',');
+            builder.append("{\"category\":\"Category ").append(c).append("\",")
+                    .append("\"warning\":{\"text\":\"Read this first\",\"color\":\"red\"},")
+                    .append("\"packs\":[");
+            for (int p = 0; p < GENERATED_PACKS_PER_CATEGORY; p++) {
+                if (p > 0)
+                    builder.append(',');
+                String name = "pack " + c + " " + p;
+                builder.append("{\"name\":\"").append(name).append("\",")
+                        .append("\"display\":\"Pack ").append(c).append(' ').append(p)
+                        .append("\",\"version\":\"1.").append(p % 10).append('.').append(c)
+                        .append("\",\"previewExtension\":\"png\",")
+                        .append("\"description\":\"Does thing ").append(p)
+                        .append(" in category ").append(c)
+                        .append(", with a description about as long as the real ones are\",")
+                        .append("\"incompatible\":[")
+                        .append(p > 0 ? "\"pack " + c + " " + (p - 1) + "\"" : "")
+                        .append("],\"requires\":[],")
+                        .append("\"video\":\"https://www.youtube.com/watch?v=").append(c * p)
+                        .append("\",\"experiment\":false,\"lastupdated\":1634000000}");
+            }
+            builder.append("]}");
+        }
+        builder.append("]}");
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static boolean samePack(Pack a, Pack b) {
+        return a.getPackId().equals(b.getPackId())
+                && Objects.equals(a.getDisplayName(), b.getDisplayName())
+                && Objects.equals(a.getDescription(), b.getDescription())
+                && a.getVersion().equals(b.getVersion())
+                && Objects.equals(a.getCategory(), b.getCategory())
+                && a.getDependencies().equals(b.getDependencies())
+                && a.getIncompatible().equals(b.getIncompatible());
+    }
+
+    /**
+     * @return The time each parse took, in nanoseconds
+     */
+    private static long[] time(Parser parser, byte[] catalog, PackType packType, int runs)
+            throws IOException {
+        long[] times = new long[runs];
+        for (int i = 0; i < runs; i++) {
+            long start = System.nanoTime();
+            parser.parse(catalog, packType);
+            times[i] = System.nanoTime() - start;
+        }
+        return times;
+    }
+
+    private static void report(String name, long[] times) {
+        Arrays.sort(times);
+        System.out.printf("%-10s %8.3f %8.3f %8.3f ms%n", name, times[0] / 1e6,
+                times[times.length / 2] / 1e6, times[times.length - 1] / 1e6);
+    }
+
+    /**
+     * @param args An optional catalog file and its pack type, then the number of timed runs
+     */
+    public static void main(String[] args) throws IOException {
+        byte[] catalog = args.length > 0 && !args[0].isEmpty()
+                ? Files.readAllBytes(Paths.get(args[0]))
+                : generateCatalog();
+        PackType packType = args.length > 1 ? PackType.valueOf(args[1]) : PackType.DATAPACK;
+        int runs = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+
+        Parser streaming = (bytes, type) -> VTCatalogReader.read(new ByteArrayInputStream(bytes),
+                type);
+        Parser databind = (bytes, type) -> VTCatalogReader
+                .readBound(new ByteArrayInputStream(bytes), type);
+
+        List<Pack> streamed = streaming.parse(catalog, packType);
+        List<Pack> bound = databind.parse(catalog, packType);
+        if (streamed.size() != bound.size())
+            throw new IllegalStateException("The readers found " + streamed.size() + " and "
+                    + bound.size() + " packs");
+        for (int i = 0; i < streamed.size(); i++)
+            if (!samePack(streamed.get(i), bound.get(i)))
+                throw new IllegalStateException("The readers differ on " + streamed.get(i));
+        System.out.println(catalog.length + " bytes, " + streamed.size() + " packs, read the "
+                + "same by both readers");
+
+        time(streaming, catalog, packType, runs);
+        time(databind, catalog, packType, runs);
+        long[] streamingTimes = new long[runs];
+        long[] databindTimes = new long[runs];
+        // Alternating rounds of ten
+        for (int i = 0; i < runs; i += 10) {
+            int count = Math.min(10, runs - i);
+            System.arraycopy(time(streaming, catalog, packType, count), 0, streamingTimes, i,
+                    count);
+            System.arraycopy(time(databind, catalog, packType, count), 0, databindTimes, i,
+                    count);
+        }
+
+        System.out.printf("%-10s %8s %8s %8s%n", "reader", "min", "median", "max");
+        report("streaming", streamingTimes);
+        report("databind", databindTimes);
+    }
+}
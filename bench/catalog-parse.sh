@@ -0,0 +1,24 @@
+#!/usr/bin/env sh
+# Compares how long the streaming catalog reader and the databind reader it replaced take to
+# parse the same catalog, after checking that they read the same packs from it. Without a
+# catalog file a synthetic one with 4000 data packs is used.
+#
+# Build the jar first with: mvn -P appcds package
+#
+# usage: bench/catalog-parse.sh [<catalog.json> [DATAPACK|RESOURCEPACK|CRAFTINGTWEAK [<runs>]]]
+#   MCPKG_JAR    The jar to run, target/mcpkg-<version>.jar by default
+#
+# The catalogs mcpkg has downloaded are in its data directory, named vt_<type>categories.json
+
+ROOT="$(cd "$(dirname "$0")/.." && pwd)"
+if [ -z "$MCPKG_JAR" ]; then
+    for jar in "$ROOT"/target/mcpkg-*.jar; do
+        MCPKG_JAR="$jar"
+    done
+fi
+if [ ! -f "$MCPKG_JAR" ]; then
+    echo "No jar found, build one with: mvn -P appcds package" >&2
+    exit 1
+fi
+
+exec java -cp "$MCPKG_JAR" "$ROOT/bench/CatalogParse.java" "$@"
@@ -0,0 +1,71 @@
+#!/usr/bin/env sh
+# Measures how long mcpkg takes to print the first byte of its output for the usage, list and
+# search commands, through the launcher both with and without the AppCDS archive. Each command
+# is run in its own process with no daemon, as a user would run it from a shell.
+#
+# Build the jar and class list first with: mvn -P appcds package
+#
+# usage: bench/startup.sh [<runs>] [<search-keyword>]
+#   MCPKG_JAR    The jar to run, target/mcpkg-<version>.jar by default
+#
+# Run it from a world directory to include that world's installed packs
+
+RUNS="${1:-10}"
+KEYWORD="${2:-tweaks}"
+ROOT="$(cd "$(dirname "$0")/.." && pwd)"
+if [ -z "$MCPKG_JAR" ]; then
+    for jar in "$ROOT"/target/mcpkg-*.jar; do
+        MCPKG_JAR="$jar"
+    done
+fi
+if [ ! -f "$MCPKG_JAR" ]; then
+    echo "No jar found, build one with: mvn -P appcds package" >&2
+    exit 1
+fi
+export MCPKG_JAR
+export MCPKG_NO_DAEMON=1
+
+now() {
+    date +%s%N
+}
+
+# Prints the milliseconds until the command's first byte of standard output
+first_output() {
+    start=$(now)
+    "$@" < /dev/null 2> /dev/null | {
+        head -c 1 > /dev/null
+        first=$(now)
+        cat > /dev/null
+        echo $(((first - start) / 1000000))
+    }
+}
+
+# Prints the lowest, median and highest of several runs of a command
+measure() {
+    times=""
+    i=0
+    while [ "$i" -lt "$RUNS" ]; do
+        times="$times $(first_output "$@")"
+        i=$((i + 1))
+    done
+    echo $times | tr ' ' '\n' | sort -n | awk '
+        { times[NR] = $1 }
+        END { printf "%6d %6d %6d", times[1], times[int((NR + 1) / 2)], times[NR] }'
+}
+
+# Warms the catalog cache and makes the archive, so neither is counted
+sh "$ROOT/mcpkg.sh" list > /dev/null 2>&1
+
+printf "%-8s %-8s %6s %6s %6s\n" "command" "archive" "min" "median" "max"
+for command in usage list search; do
+    case "$command" in
+        usage) args="" ;;
+        list) args="list" ;;
+        search) args="search $KEYWORD" ;;
+    esac
+    # $args is split into words on purpose
+    export MCPKG_NO_CDS=1
+    printf "%-8s %-8s %s ms\n" "$command" "off" "$(measure sh "$ROOT/mcpkg.sh" $args)"
+    unset MCPKG_NO_CDS
+    printf "%-8s %-8s %s ms\n" "$command" "on" "$(measure sh "$ROOT/mcpkg.sh" $args)"
+done
@@ -18,6 +18,7 @@ def gen_hash(filename: str) -> str:
 
 checksums = [gen_hash(filename) for filename in [
     f"mcpkg-{release_tag}.jar",
+    f"mcpkg-{release_tag}.classlist",
     "mcpkg.sh",
     "README.md"
 ]]
@@ -37,7 +38,8 @@ with open('./pkgbuild/mcpkg/PKGBUILD', 'w') as pkgbuild:
     content += f'pkgver={release_tag}\n'
     source_url_prefix = 'https://github.com/CRISPYricePC/mcpkg/releases/download/${pkgver}'
     source_url = source_url_prefix + "/mcpkg-${pkgver}.jar"
-    content += f"source=(\n\t{source_url}\n\tmcpkg::{shell_url}\n\tmcpkg-README.md::{readme_url}\n)\n"
+    classlist_url = source_url_prefix + "/mcpkg-${pkgver}.classlist"
+    content += f"source=(\n\t{source_url}\n\t{classlist_url}\n\tmcpkg::{shell_url}\n\tmcpkg-README.md::{readme_url}\n)\n"
     content += f"sha256sums=(\n"
     for sum in checksums:
         content += f"\t'{sum}'\n"
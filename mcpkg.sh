@@ -1,2 +1,30 @@
 #!/usr/bin/env sh
-java -jar /usr/share/java/mcpkg/mcpkg.jar "$@"
+MCPKG_JAR="${MCPKG_JAR:-/usr/share/java/mcpkg/mcpkg.jar}"
+
+# The classes that mcpkg loads on startup are shared with the JVM through an AppCDS archive, so
+# they don't have to be loaded from the jar and verified every time. An archive only works with
+# the java and jar it was made for, so it's made here from the class list installed next to the
+# jar, and made again whenever either of them changes. Set MCPKG_NO_CDS to go without it
+CLASS_LIST="${MCPKG_JAR%.jar}.classlist"
+ARCHIVE="${XDG_CACHE_HOME:-$HOME/.cache}/mcpkg/mcpkg.jsa"
+JAVA="$(command -v java)"
+
+if [ -z "$MCPKG_NO_CDS" ] && [ -f "$CLASS_LIST" ]; then
+    if [ ! -f "$ARCHIVE" ] || [ "$MCPKG_JAR" -nt "$ARCHIVE" ] \
+        || [ "$(readlink -f "$JAVA")" -nt "$ARCHIVE" ]; then
+        # Dumped to a temporary file first, as java can't read an archive cut short
+        mkdir -p "$(dirname "$ARCHIVE")"
+        if "$JAVA" -Xshare:dump -XX:SharedClassListFile="$CLASS_LIST" \
+            -XX:SharedArchiveFile="$ARCHIVE.$$" -cp "$MCPKG_JAR" > /dev/null 2>&1; then
+            mv -f "$ARCHIVE.$$" "$ARCHIVE"
+        else
+            rm -f "$ARCHIVE.$$" "$ARCHIVE"
+        fi
+    fi
+    # Falls back to loading everything from the jar if the archive can't be used
+    if [ -f "$ARCHIVE" ]; then
+        exec "$JAVA" -XX:SharedArchiveFile="$ARCHIVE" -Xshare:auto -Xlog:cds=off \
+            -jar "$MCPKG_JAR" "$@"
+    fi
+fi
+exec "$JAVA" -jar "$MCPKG_JAR" "$@"
@@ -0,0 +1,77 @@
+package dev.benmitchell.mcpkg;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 hashing of pack files, shared by everything that records or checks what was installed
+ */
+public class Checksums {
+    // Large files are mapped a window at a time, as a mapping is limited to 2GiB
+    private static final long MAP_WINDOW_SIZE = 256L * 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * @return A new SHA-256 digest
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            // Every JVM is required to support SHA-256
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * @return The bytes as a lowercase hex string
+     */
+    public static String toHex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            builder.append(Character.forDigit((b >> 4) & 0xf, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
+        return builder.toString();
+    }
+
+    /**
+     * @return The SHA-256 hash of the file as a hex string
+     */
+    public static String sha256(Path file) throws IOException {
+        MessageDigest digest = newDigest();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (channel.read(buffer) >= 0) {
+                digest.update(buffer.flip());
+                buffer.clear();
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Hashes a file through a read-only memory mapping, so that its contents are hashed straight
+     * out of the page cache without any reads. Only meant for files that are left where they are
+     * afterwards, as Windows won't move or delete a file until its mapping is garbage collected
+     * 
+     * @return The SHA-256 hash of the file as a hex string
+     */
+    public static String sha256Mapped(Path file) throws IOException {
+        MessageDigest digest = newDigest();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            for (long position = 0; position < size; position += MAP_WINDOW_SIZE) {
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(MAP_WINDOW_SIZE, size - position));
+                digest.update(window);
+            }
+        }
+        return toHex(digest.digest());
+    }
+}
@@ -1,66 +1,351 @@
 package dev.benmitchell.mcpkg;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.System.Logger.Level;
+import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
 
-import org.apache.commons.io.IOUtils;
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.NameValuePair;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.message.BasicNameValuePair;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import dev.benmitchell.mcpkg.http.HttpTransport;
+import dev.benmitchell.mcpkg.http.TransportResponse;
 
 public class DownloadManager {
-    private static HttpClient httpClient = HttpClients.createDefault();
+    /**
+     * The validators a server sent with a file, stored next to the file so that it can be
+     * revalidated later
+     */
+    public static class Validators {
+        public String eTag;
+        public String lastModified;
+    }
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static HttpTransport transport = null;
+    // Locks the partial downloads kept between runs. There's only ever one channel, as closing
+    // any channel to a file can release every lock the process holds on it
+    private static FileChannel partLocks = null;
+
+    /**
+     * @return The transport shared by every request, created on first use
+     */
+    private static synchronized HttpTransport getTransport() {
+        if (transport == null)
+            transport = HttpTransport.fromConfig(Platform.getConfig());
+        return transport;
+    }
 
     public static String postRequest(URL url, Map<String, String> requestContent)
             throws IOException, URISyntaxException {
-        HttpPost httpPost = new HttpPost(url.toURI());
+        return getTransport().post(url.toURI(), requestContent);
+    }
+
+    /**
+     * @return The value to send in If-Range to check that a partial download is still valid, or
+     *         null if the response can't be resumed safely. Only a strong ETag will do, as weak
+     *         ETags aren't allowed in If-Range, and Last-Modified is only accurate to the second
+     */
+    private static String getValidator(TransportResponse response) {
+        String eTag = response.getHeader("ETag");
+        if (eTag != null && !eTag.startsWith("W/"))
+            return eTag;
+        return null;
+    }
+
+    /**
+     * @return The name to keep a partial download of the source under. The source's URL is part of
+     *         it, as different sources can have the same file name, such as every data pack bundle
+     */
+    private static String getPartName(URL source, File destination) {
+        String urlHash = Checksums.toHex(Checksums.newDigest()
+                .digest(source.toString().getBytes(StandardCharsets.UTF_8)));
+        return destination.getName() + "." + urlHash.substring(0, 16);
+    }
+
+    /**
+     * @return The directory that partial downloads are kept in, so that a later run can resume
+     *         them
+     */
+    private static Path getPartsDir() throws IOException {
+        Path partsDir = Platform.getConfig().dataPath.resolve("downloads");
+        Files.createDirectories(partsDir);
+        return partsDir;
+    }
 
-        List<NameValuePair> nvpList = new ArrayList<NameValuePair>(requestContent.size());
-        for (var entryPair : requestContent.entrySet()) {
-            nvpList.add(new BasicNameValuePair(entryPair.getKey(), entryPair.getValue()));
+    /**
+     * Locks the partial download with the given name, so that only one process at a time writes
+     * to it. Every name shares one lock file, in which each name locks its own byte
+     * 
+     * @return The lock, or null if another download already holds it
+     */
+    private static FileLock lockPart(String name) throws IOException {
+        FileChannel channel;
+        synchronized (DownloadManager.class) {
+            if (partLocks == null)
+                partLocks = FileChannel.open(getPartsDir().resolve("downloads.lock"),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            channel = partLocks;
         }
-        httpPost.setEntity(new UrlEncodedFormEntity(nvpList, "UTF-8"));
+        try {
+            return channel.tryLock(name.hashCode() & Integer.MAX_VALUE, 1, false);
+        } catch (OverlappingFileLockException ex) {
+            // Another thread in this process is downloading it
+            return null;
+        }
+    }
 
-        HttpResponse response = httpClient.execute(httpPost);
-        HttpEntity entity = response.getEntity();
+    /**
+     * Feeds what's already in a file into a digest, so that bytes appended to it can be hashed as
+     * they're written
+     */
+    private static void hashExisting(File file, MessageDigest digest) throws IOException {
+        try (InputStream iStream = new DigestInputStream(new FileInputStream(file), digest)) {
+            iStream.transferTo(OutputStream.nullOutputStream());
+        }
+    }
 
-        if (entity != null)
-            try (InputStream iStream = entity.getContent()) {
-                return IOUtils.toString(iStream, StandardCharsets.UTF_8.name());
+    /**
+     * Copies a response body to a file, hashing it on the way through
+     * 
+     * @return false if the body was shorter than its Content-Length
+     */
+    private static boolean writeBody(TransportResponse response, File file, boolean append,
+            MessageDigest digest) throws IOException {
+        long written;
+        try (OutputStream oStream =
+                new DigestOutputStream(new FileOutputStream(file, append), digest)) {
+            written = response.getBody().transferTo(oStream);
+        }
+
+        String contentLength = response.getHeader("Content-Length");
+        try {
+            if (contentLength != null && written != Long.parseLong(contentLength.strip()))
+                return false;
+        } catch (NumberFormatException ex) {
+            // Nothing to check against
+        }
+        return true;
+    }
+
+    /**
+     * Downloads into "part.part", resuming from whatever is already in that file. The validator
+     * (a strong ETag) of the response that started the part file is stored in
+     * "part.part.validator" and sent in If-Range, so the server only sends the rest if the file
+     * hasn't changed. A response without one starts again from the beginning each time. The part
+     * file is moved to the destination once it's complete
+     * 
+     * @param part The path of the part file, without ".part"
+     * @return The SHA-256 hash of the file if the download finished, or null if the connection
+     *         dropped part way through
+     */
+    private static String downloadPart(URL source, File part, File destination)
+            throws IOException {
+        File partFile = new File(part.getPath() + ".part");
+        File validatorFile = new File(part.getPath() + ".part.validator");
+
+        long offset = 0;
+        String validator = null;
+        if (partFile.exists() && validatorFile.exists()) {
+            offset = partFile.length();
+            validator = Files.readString(validatorFile.toPath()).strip();
+        }
+
+        Map<String, String> headers = new HashMap<String, String>();
+        // Byte ranges refer to the encoded body, so don't let the server compress it
+        headers.put("Accept-Encoding", "identity");
+        if (offset > 0) {
+            headers.put("Range", "bytes=" + offset + "-");
+            headers.put("If-Range", validator);
+        }
+
+        TransportResponse response;
+        try {
+            response = getTransport().get(toURI(source), headers);
+        } catch (IOException ex) {
+            MCPKGLogger.log(Level.WARNING,
+                    "Couldn't connect to '" + source + "': " + ex.getMessage());
+            return null;
+        }
+
+        try (response) {
+            boolean append;
+            String contentRange = response.getHeader("Content-Range");
+            if (response.getStatus() == 206 && offset > 0 && contentRange != null
+                    && contentRange.startsWith("bytes " + offset + "-")) {
+                MCPKGLogger.log(Level.DEBUG, "Resuming '" + source + "' from byte " + offset);
+                append = true;
+            } else if (response.getStatus() == 200) {
+                // Either a fresh download, or the file changed since the part was downloaded
+                append = false;
+                String newValidator = getValidator(response);
+                if (newValidator != null)
+                    Files.writeString(validatorFile.toPath(), newValidator);
+                else
+                    validatorFile.delete();
+            } else if (response.getStatus() == 206 || response.getStatus() == 416) {
+                // The part file is no use, so start again from the beginning next time
+                partFile.delete();
+                validatorFile.delete();
+                return null;
+            } else {
+                throw new IOException(
+                        "Downloading '" + source + "' failed with HTTP " + response.getStatus());
             }
 
-        throw new RuntimeException("entity was null");
+            // Only the part that was already downloaded is read back, and only when resuming
+            MessageDigest digest = Checksums.newDigest();
+            if (append)
+                hashExisting(partFile, digest);
+            try {
+                if (!writeBody(response, partFile, append, digest)) {
+                    MCPKGLogger.log(Level.WARNING, "Download of '" + source + "' ended early");
+                    return null;
+                }
+            } catch (IOException ex) {
+                MCPKGLogger.log(Level.WARNING,
+                        "Connection to '" + source + "' dropped: " + ex.getMessage());
+                return null;
+            }
+
+            // Not atomic, as the part file may be on another filesystem
+            Files.move(partFile.toPath(), destination.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+            validatorFile.delete();
+            return Checksums.toHex(digest.digest());
+        }
     }
 
-    public static void downloadToFile(URL source, File destination, boolean append,
+    /**
+     * Downloads a file. Unless appending, interrupted downloads are resumed from where they left
+     * off, up to {@code Platform.getConfig().downloadRetries} times. The partial download is kept
+     * in the mcpkg data directory under the destination's name and a hash of the source's URL, so
+     * a later run resumes it too if it's given up on. The file is hashed as it's written, and a
+     * download shorter than its Content-Length counts as interrupted
+     * 
+     * @param append Whether to append to the destination rather than replace it
+     * @return The SHA-256 hash of the whole destination file
+     */
+    public static String downloadToFile(URL source, File destination, boolean append,
             String downloadMessage) throws IOException, FileNotFoundException {
         MCPKGLogger.log(Level.INFO, downloadMessage);
-        try (InputStream iStream = source.openStream()) {
-            try (OutputStream oStream = new FileOutputStream(destination, append)) {
-                iStream.transferTo(oStream);
-            } // oStream
-        } // iStream
+        if (append) {
+            try (TransportResponse response =
+                    getTransport().get(toURI(source), Collections.emptyMap())) {
+                if (response.getStatus() != 200)
+                    throw new IOException("Downloading '" + source + "' failed with HTTP "
+                            + response.getStatus());
+
+                MessageDigest digest = Checksums.newDigest();
+                if (destination.exists())
+                    hashExisting(destination, digest);
+                if (!writeBody(response, destination, true, digest))
+                    throw new IOException("Download of '" + source + "' ended early");
+                return Checksums.toHex(digest.digest());
+            } // response
+        }
+
+        String partName = getPartName(source, destination);
+        try (FileLock lock = lockPart(partName)) {
+            // If something else is downloading the same file, this one is only resumable here
+            File part = lock != null ? getPartsDir().resolve(partName).toFile() : destination;
+            for (int attempt = 0; attempt <= Platform.getConfig().downloadRetries; attempt++) {
+                String sha256 = downloadPart(source, part, destination);
+                if (sha256 != null)
+                    return sha256;
+            }
+        }
+        throw new IOException("Downloading '" + source + "' failed after "
+                + (Platform.getConfig().downloadRetries + 1) + " attempts");
     }
 
-    public static void downloadToFile(URL source, File destination, boolean append)
+    /**
+     * Makes sure the destination holds the latest copy of the source. The ETag and Last-Modified
+     * of the last download are kept in "destination.meta" and sent back as If-None-Match and
+     * If-Modified-Since. If the server says the file hasn't changed, only the destination's
+     * modification time is updated. Otherwise the new copy atomically replaces the old one
+     * 
+     * @return true if a new copy was downloaded, false if the destination was already up to date
+     */
+    public static boolean revalidateFile(URL source, File destination, String downloadMessage)
+            throws IOException {
+        File metaFile = new File(destination.getPath() + ".meta");
+        Validators validators = new Validators();
+        if (destination.exists() && metaFile.exists()) {
+            try {
+                validators = MAPPER.readValue(metaFile, Validators.class);
+            } catch (IOException ex) {
+                MCPKGLogger.log(Level.DEBUG, "Ignoring unreadable '" + metaFile + "'");
+            }
+        }
+
+        Map<String, String> headers = new HashMap<String, String>();
+        if (validators.eTag != null)
+            headers.put("If-None-Match", validators.eTag);
+        if (validators.lastModified != null)
+            headers.put("If-Modified-Since", validators.lastModified);
+
+        try (TransportResponse response = getTransport().get(toURI(source), headers)) {
+            if (response.getStatus() == 304) {
+                MCPKGLogger.log(Level.DEBUG, "'" + destination + "' is up to date");
+                destination.setLastModified(System.currentTimeMillis());
+                return false;
+            }
+            if (response.getStatus() != 200)
+                throw new IOException(
+                        "Downloading '" + source + "' failed with HTTP " + response.getStatus());
+
+            MCPKGLogger.log(Level.INFO, downloadMessage);
+            Path tmpFile = Files.createTempFile(destination.getParentFile().toPath(),
+                    destination.getName(), ".tmp");
+            try (OutputStream oStream = Files.newOutputStream(tmpFile)) {
+                response.getBody().transferTo(oStream);
+            } catch (IOException ex) {
+                Files.delete(tmpFile);
+                throw ex;
+            }
+            Files.move(tmpFile, destination.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+
+            validators.eTag = response.getHeader("ETag");
+            validators.lastModified = response.getHeader("Last-Modified");
+            MAPPER.writeValue(metaFile, validators);
+            return true;
+        }
+    }
+
+    public static String downloadToFile(URL source, File destination, boolean append)
             throws IOException, FileNotFoundException {
-        downloadToFile(source, destination, append,
+        return downloadToFile(source, destination, append,
                 "Downloading '" + source + "' to '" + destination + "'...");
     }
+
+    private static URI toURI(URL url) throws IOException {
+        try {
+            return url.toURI();
+        } catch (URISyntaxException ex) {
+            throw new IOException("Invalid URL '" + url + "'", ex);
+        }
+    }
 }
@@ -9,24 +9,29 @@ import org.fusesource.jansi.AnsiConsole;
 import org.fusesource.jansi.Ansi.Color;
 
 public class MCPKGLogger {
-    private static final Map<Level, String> LOG_LEVEL_STRINGS;
-    static {
-        AnsiConsole.systemInstall();
-        LOG_LEVEL_STRINGS = new HashMap<Level, String>();
-        LOG_LEVEL_STRINGS.put(Level.ALL, "");
-        LOG_LEVEL_STRINGS.put(Level.TRACE,
-                "[" + Ansi.ansi().fg(Color.BLUE).a("TRACE").reset() + "]");
-        LOG_LEVEL_STRINGS.put(Level.DEBUG,
-                "[" + Ansi.ansi().fg(Color.BLUE).a("DEBUG").reset() + "]");
-        LOG_LEVEL_STRINGS.put(Level.INFO,
-                "[" + Ansi.ansi().fg(Color.GREEN).a("INFO").reset() + "]");
-        LOG_LEVEL_STRINGS.put(Level.WARNING,
-                "[" + Ansi.ansi().fg(Color.YELLOW).a("WARNING").reset() + "]");
-        LOG_LEVEL_STRINGS.put(Level.ERROR,
-                "[" + Ansi.ansi().fg(Color.RED).a("ERROR").reset() + "]");
-        LOG_LEVEL_STRINGS.put(Level.OFF, "");
-        AnsiConsole.systemUninstall();
-    };
+    /**
+     * Holds the level labels, so that Jansi is only loaded once something is logged
+     */
+    private static class LevelStrings {
+        static final Map<Level, String> LOG_LEVEL_STRINGS;
+        static {
+            AnsiConsole.systemInstall();
+            LOG_LEVEL_STRINGS = new HashMap<Level, String>();
+            LOG_LEVEL_STRINGS.put(Level.ALL, "");
+            LOG_LEVEL_STRINGS.put(Level.TRACE,
+                    "[" + Ansi.ansi().fg(Color.BLUE).a("TRACE").reset() + "]");
+            LOG_LEVEL_STRINGS.put(Level.DEBUG,
+                    "[" + Ansi.ansi().fg(Color.BLUE).a("DEBUG").reset() + "]");
+            LOG_LEVEL_STRINGS.put(Level.INFO,
+                    "[" + Ansi.ansi().fg(Color.GREEN).a("INFO").reset() + "]");
+            LOG_LEVEL_STRINGS.put(Level.WARNING,
+                    "[" + Ansi.ansi().fg(Color.YELLOW).a("WARNING").reset() + "]");
+            LOG_LEVEL_STRINGS.put(Level.ERROR,
+                    "[" + Ansi.ansi().fg(Color.RED).a("ERROR").reset() + "]");
+            LOG_LEVEL_STRINGS.put(Level.OFF, "");
+            AnsiConsole.systemUninstall();
+        };
+    }
 
     private static boolean isLoggable(Level level) {
         if (System.getenv("MCPKG_DEBUG") != null)
@@ -43,6 +48,6 @@ public class MCPKGLogger {
         if (!isLoggable(level))
             return;
 
-        System.err.println(LOG_LEVEL_STRINGS.get(level) + " " + msg);
+        System.err.println(LevelStrings.LOG_LEVEL_STRINGS.get(level) + " " + msg);
     }
 }
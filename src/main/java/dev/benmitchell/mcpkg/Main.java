@@ -1,6 +1,8 @@
 package dev.benmitchell.mcpkg;
 
 import java.io.IOException;
+import java.lang.System.Logger.Level;
+import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
@@ -8,47 +10,113 @@ import java.util.Map;
 
 import dev.benmitchell.mcpkg.cli.ArgParser;
 import dev.benmitchell.mcpkg.cli.CommandLine;
+import dev.benmitchell.mcpkg.daemon.DaemonClient;
 import dev.benmitchell.mcpkg.exceptions.MCPKGException;
+import dev.benmitchell.mcpkg.packs.InstallTransaction;
 
 public class Main {
     public static void main(String[] args) {
-        ArgParser globalFlagsParser = new ArgParser(new HashMap<String, Object>() {
+        // Hand the command to a running daemon, if there is one
+        Integer status = DaemonClient.forward(args);
+        System.exit(status != null ? status : run(args));
+    }
+
+    /**
+     * @return The flags that every command accepts, with their default values
+     */
+    public static Map<String, Object> getDefaultFlags() {
+        return new HashMap<String, Object>() {
             {
                 put("help", false);
                 put("y", false);
                 put("installed", false);
-                put("minecraft-dir", Platform.config.dotMinecraftPath.toString());
+                put("all", false);
+                put("fuzzy", false);
+                put("all-worlds", false);
+                put("category", "");
+                put("world", "");
+                put("dir", "");
+                put("jobs", "");
+                put("output", CommandLine.TEXT_OUTPUT);
+                put("check", false);
+                // Empty for the configured one, so the config isn't read just to parse flags
+                put("minecraft-dir", "");
             }
-        });
+        };
+    }
+
+    /**
+     * Runs the command given by the arguments
+     * 
+     * @return The exit status of the command
+     */
+    public static int run(String[] args) {
+        ArgParser globalFlagsParser = new ArgParser(getDefaultFlags());
 
         Map<String, Object> enabledFlags;
+        Path previousWorkingDir = Platform.getWorkingDir();
         try {
             enabledFlags = globalFlagsParser.getEnabledFlags(Arrays.asList(args));
+            boolean confirm = !(Boolean) enabledFlags.get("y");
+            String output = (String) enabledFlags.get("output");
+            if (!CommandLine.OUTPUT_FORMATS.contains(output)) {
+                MCPKGLogger.log(Level.ERROR, "'" + output + "' is not an output format, use: "
+                        + String.join(", ", CommandLine.OUTPUT_FORMATS));
+                return 1;
+            }
+
+            // Run the command as if from another directory or world
+            String dir = (String) enabledFlags.get("dir");
+            if (!dir.isEmpty())
+                Platform.setWorkingDir(previousWorkingDir.resolve(dir).normalize());
+            String world = (String) enabledFlags.get("world");
+            if (!world.isEmpty())
+                Platform.setWorkingDir(Platform.getSavesDir().resolve(world));
 
             List<String> subcommands = globalFlagsParser.getFlaglessArgs();
-            if (subcommands.size() == 0)
-                System.exit(CommandLine.usage());
+            if (subcommands.size() == 0 || (Boolean) enabledFlags.get("help"))
+                return CommandLine.usage();
+
+            // Finish off any install that was interrupted before running anything else
+            InstallTransaction.recover();
 
             if (subcommands.get(0).equals("install"))
-                System.exit(CommandLine.install(subcommands.subList(1, subcommands.size())));
+                return CommandLine.install(subcommands.subList(1, subcommands.size()),
+                        (String) enabledFlags.get("category"), confirm);
             if (subcommands.get(0).equals("uninstall"))
-                System.exit(CommandLine.uninstall(subcommands.subList(1, subcommands.size())));
+                return CommandLine.uninstall(subcommands.subList(1, subcommands.size()));
             if (subcommands.get(0).equals("update"))
-                System.exit(CommandLine.update(subcommands.subList(1, subcommands.size())));
+                return CommandLine.update(subcommands.subList(1, subcommands.size()), confirm,
+                        (Boolean) enabledFlags.get("check"), output);
             if (subcommands.get(0).equals("list"))
-                System.exit(CommandLine.list((Boolean) enabledFlags.get("installed")));
+                return CommandLine.list((Boolean) enabledFlags.get("installed"),
+                        (Boolean) enabledFlags.get("all-worlds"), output);
             if (subcommands.get(0).equals("search"))
-                System.exit(CommandLine.search(subcommands.subList(1, subcommands.size()),
-                        (Boolean) enabledFlags.get("installed")));
+                return CommandLine.search(subcommands.subList(1, subcommands.size()),
+                        (Boolean) enabledFlags.get("installed"),
+                        (Boolean) enabledFlags.get("all"), (Boolean) enabledFlags.get("fuzzy"),
+                        output);
             if (subcommands.get(0).equals("info"))
-                System.exit(CommandLine.info(subcommands.subList(1, subcommands.size())));
+                return CommandLine.info(subcommands.subList(1, subcommands.size()), output);
+            if (subcommands.get(0).equals("verify"))
+                return CommandLine.verify((Boolean) enabledFlags.get("all-worlds"));
+            if (subcommands.get(0).equals("cache"))
+                return CommandLine.cache(subcommands.subList(1, subcommands.size()));
+            if (subcommands.get(0).equals("batch"))
+                return CommandLine.batch(subcommands.subList(1, subcommands.size()),
+                        (String) enabledFlags.get("jobs"));
+            if (subcommands.get(0).equals("daemon"))
+                return CommandLine.daemon(subcommands.subList(1, subcommands.size()));
 
         } catch (IOException ex) {
             MCPKGLogger.err(ex);
-            System.exit(1);
+            return 1;
         } catch (MCPKGException ex) {
             MCPKGLogger.err(ex);
-            System.exit(1);
+            return 1;
+        } finally {
+            Platform.setWorkingDir(previousWorkingDir);
         }
+        return 0;
     }
 }
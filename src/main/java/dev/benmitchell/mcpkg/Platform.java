@@ -21,6 +21,18 @@ public class Platform {
     public static class Config {
         public Path dotMinecraftPath = DOT_MINECRAFT_PATH;
         public Path dataPath = DATA_PATH;
+        public String vanillaTweaksUrl = "https://vanillatweaks.net";
+        public int downloadThreads = 4;
+        public boolean batchDownloads = true;
+        public int maxConnectionsPerHost = 8;
+        public int connectTimeout = 10 * 1000;
+        public int readTimeout = 30 * 1000;
+        public boolean http2 = false;
+        public int downloadRetries = 3;
+        public long cacheMaxSize = 512L * 1024 * 1024;
+        public boolean packStore = true;
+        public long catalogTtl = 24 * 60 * 60;
+        public boolean catalogStaleWhileRevalidate = false;
     }
 
     private static final Path DOT_MINECRAFT_PATH;
@@ -49,26 +61,37 @@ public class Platform {
             else
                 CONFIG_PATH = Paths.get(partialConfigPath, "mcpkg");
         }
+    };
+
+    /**
+     * Holds the config, so that it's only read the first time it's needed rather than whenever
+     * Platform is used. Printing the usage, for example, doesn't need it
+     */
+    private static class ConfigHolder {
+        static final Config CONFIG = loadConfig();
+    }
 
+    /**
+     * Creates the data and config directories if they're missing, then reads the config file,
+     * creating an empty one first if there isn't one
+     */
+    private static Config loadConfig() {
         File dataFile = DATA_PATH.toFile();
         if (!dataFile.exists())
             dataFile.mkdirs();
         File configFile = CONFIG_PATH.toFile();
         if (!configFile.exists())
             configFile.mkdirs();
-    };
 
-    public static Config config;
-    static {
         try {
             ObjectMapper mapper = new ObjectMapper();
-            File cfgFile = CONFIG_PATH.resolve("config.json").toFile();
+            File cfgFile = getConfigFile().toFile();
             if (!cfgFile.exists())
                 try (FileWriter writer = new FileWriter(cfgFile)) {
                     writer.write("{\n}\n");
                 }
             try (Reader reader = new BufferedReader(new FileReader(cfgFile))) {
-                config = mapper.readValue(cfgFile, Config.class);
+                return mapper.readValue(cfgFile, Config.class);
             } catch (FileNotFoundException ex) {
                 MCPKGLogger.err(ex);
                 MCPKGLogger.log(Level.ERROR, "If you've reached this code, file a bug report");
@@ -78,22 +101,60 @@ public class Platform {
             MCPKGLogger.err(ex);
             System.exit(-1);
         }
+        return null;
+    }
+
+    /**
+     * @return The config file, without reading it
+     */
+    public static Path getConfigFile() {
+        return CONFIG_PATH.resolve("config.json");
+    }
+
+    /**
+     * @return The config, which is read on the first call
+     */
+    public static Config getConfig() {
+        return ConfigHolder.CONFIG;
+    }
+
+    // The directory commands run from. A daemon or batch sets it for each command, for the thread
+    // running the command and the threads it starts
+    private static final Path PROCESS_WORKING_DIR = Paths.get(SystemUtils.USER_DIR);
+    private static final InheritableThreadLocal<Path> workingDir =
+            new InheritableThreadLocal<Path>();
+
+    public static Path getWorkingDir() {
+        Path directory = workingDir.get();
+        return directory == null ? PROCESS_WORKING_DIR : directory;
+    }
+
+    /**
+     * @param directory The directory to run commands from on this thread, or null for the
+     *        process's working directory
+     */
+    public static void setWorkingDir(Path directory) {
+        workingDir.set(directory);
     }
 
     public static Path getResourcePacksDir() {
-        return config.dotMinecraftPath.resolve("resourcepacks");
+        return getConfig().dotMinecraftPath.resolve("resourcepacks");
+    }
+
+    public static Path getSavesDir() {
+        return getConfig().dotMinecraftPath.resolve("saves");
     }
 
     public static boolean isADataPacksDir(Path directory) {
         return directory // .minecraft/saves/some_save_folder/datapacks
                 .getParent() // .minecraft/saves/some_save_folder
                 .getParent() // .minecraft/saves
-                .equals(config.dotMinecraftPath.resolve("saves"))
+                .equals(getSavesDir())
                 && directory.getFileName().equals(Paths.get("datapacks"));
     }
 
     public static Path getDataPacksDir() throws InvalidDirectoryException {
-        Path cwd = Paths.get(SystemUtils.USER_DIR);
+        Path cwd = getWorkingDir();
 
         // If we're in a datapacks directory inside .minecraft
         if (isADataPacksDir(cwd))
@@ -101,7 +162,7 @@ public class Platform {
         // If we're in a worlds directory inside .minecraft
         if (cwd // .minecraft/saves/some_save_folder
                 .getParent() // .minecraft/saves
-                .equals(config.dotMinecraftPath.resolve("saves")))
+                .equals(getSavesDir()))
             return cwd.resolve("datapacks");
 
         throw new InvalidDirectoryException(cwd, "A unique data pack directory couldn't be found");
@@ -0,0 +1,279 @@
+package dev.benmitchell.mcpkg.batch;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.System.Logger.Level;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import dev.benmitchell.mcpkg.MCPKGLogger;
+import dev.benmitchell.mcpkg.Main;
+import dev.benmitchell.mcpkg.Platform;
+import dev.benmitchell.mcpkg.cli.ArgParser;
+import dev.benmitchell.mcpkg.exceptions.InvalidFlagException;
+
+/**
+ * Runs many commands in one process, one per line of a script. The commands share the process's
+ * sources, so the catalog and the installed packs are only loaded once, and commands that don't
+ * depend on each other run at the same time. A command depends on an earlier one if either of
+ * them changes packs, and they either use a directory in common or one of them applies to every
+ * world or to the whole mcpkg data directory. Every command uses the resource packs directory as
+ * well as its own directory, as any pack it installs, updates or uninstalls may be a resource
+ * pack, so commands that change packs run one at a time.
+ * 
+ * Lines are split into arguments like a shell would, with quotes and backslashes. Blank lines and
+ * lines starting with # are skipped, and a leading "mcpkg" is dropped. The global flags on a line,
+ * such as --world, --dir and -y, apply to its command alone. Commands have no standard input, so
+ * they answer no to any question unless they're given -y.
+ * 
+ * The result of each command is written to standard output as a line of JSON, in script order
+ */
+public class Batch {
+    public static class Result {
+        public int line;
+        public List<String> command;
+        public int status;
+        public String output;
+        public String errors;
+        public long millis;
+    }
+
+    private static class Command {
+        int line;
+        List<String> args;
+        boolean writes;
+        // The directories the command reads or changes packs in, or null if it applies to every
+        // directory
+        Set<Path> scope;
+        CompletableFuture<Result> result;
+
+        boolean dependsOn(Command earlier) {
+            return (writes || earlier.writes) && (scope == null || earlier.scope == null
+                    || !Collections.disjoint(scope, earlier.scope));
+        }
+    }
+
+    /**
+     * Writes to whichever stream the current thread's command has been given, or to a fallback
+     * outside of commands. Threads that a command starts write to the command's stream too
+     */
+    private static class RoutedOutputStream extends OutputStream {
+        private final OutputStream fallback;
+        private final InheritableThreadLocal<OutputStream> route =
+                new InheritableThreadLocal<OutputStream>();
+
+        RoutedOutputStream(OutputStream fallback) {
+            this.fallback = fallback;
+        }
+
+        private OutputStream get() {
+            OutputStream stream = route.get();
+            return stream == null ? fallback : stream;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            get().write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            get().write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            get().flush();
+        }
+    }
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    // Commands that don't change anything, so can run alongside each other
+    private static final Set<String> READ_ONLY_COMMANDS = Set.of("list", "search", "info");
+    // Commands that can't be run from a batch
+    private static final Set<String> UNBATCHABLE_COMMANDS = Set.of("batch", "daemon");
+
+    private final int jobs;
+    private RoutedOutputStream outRoute;
+    private RoutedOutputStream errRoute;
+
+    /**
+     * @param jobs The most commands to run at the same time
+     */
+    public Batch(int jobs) {
+        this.jobs = jobs;
+    }
+
+    /**
+     * Splits a line into arguments, honouring quotes and backslashes
+     */
+    static List<String> splitLine(String line) {
+        List<String> args = new ArrayList<String>();
+        StringBuilder arg = new StringBuilder();
+        boolean inArg = false;
+        char quote = 0;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '\\' && quote != '\'' && i + 1 < line.length()) {
+                arg.append(line.charAt(++i));
+                inArg = true;
+            } else if (quote != 0) {
+                if (c == quote)
+                    quote = 0;
+                else
+                    arg.append(c);
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+                inArg = true;
+            } else if (Character.isWhitespace(c)) {
+                if (inArg)
+                    args.add(arg.toString());
+                arg.setLength(0);
+                inArg = false;
+            } else {
+                arg.append(c);
+                inArg = true;
+            }
+        }
+        if (inArg)
+            args.add(arg.toString());
+        return args;
+    }
+
+    /**
+     * Works out what a command changes and where, from its arguments
+     */
+    private static void classify(Command command) {
+        command.writes = true;
+        command.scope = null;
+        ArgParser parser = new ArgParser(Main.getDefaultFlags());
+        Map<String, Object> flags;
+        try {
+            flags = parser.getEnabledFlags(command.args);
+        } catch (InvalidFlagException | IndexOutOfBoundsException ex) {
+            // It'll fail when it's run, but is kept in order anyway
+            return;
+        }
+        List<String> subcommands = parser.getFlaglessArgs();
+        if (subcommands.isEmpty() || (Boolean) flags.get("all-worlds")
+                || subcommands.get(0).equals("cache") || subcommands.get(0).equals("verify"))
+            return;
+
+        command.writes = !READ_ONLY_COMMANDS.contains(subcommands.get(0));
+        Path directory = Platform.getWorkingDir();
+        if (!((String) flags.get("dir")).isEmpty())
+            directory = directory.resolve((String) flags.get("dir")).normalize();
+        if (!((String) flags.get("world")).isEmpty())
+            directory = Platform.getSavesDir().resolve((String) flags.get("world"));
+        // Resource packs are shared by every world
+        command.scope = new HashSet<Path>(List.of(directory, Platform.getResourcePacksDir()));
+    }
+
+    private Result run(Command command) {
+        Result result = new Result();
+        result.line = command.line;
+        result.command = command.args;
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        outRoute.route.set(output);
+        errRoute.route.set(errors);
+        long start = System.nanoTime();
+        try {
+            if (!command.args.isEmpty() && UNBATCHABLE_COMMANDS.contains(command.args.get(0))) {
+                MCPKGLogger.log(Level.ERROR, "'" + command.args.get(0) + "' can't be batched");
+                result.status = 1;
+            } else {
+                result.status = Main.run(command.args.toArray(new String[0]));
+            }
+        } catch (RuntimeException ex) {
+            // Kept from stopping the rest of the batch
+            MCPKGLogger.log(Level.ERROR, ex.toString());
+            result.status = 1;
+        } finally {
+            System.out.flush();
+            System.err.flush();
+            outRoute.route.remove();
+            errRoute.route.remove();
+        }
+        result.millis = (System.nanoTime() - start) / 1000000;
+        result.output = output.toString();
+        result.errors = errors.toString();
+        return result;
+    }
+
+    /**
+     * Runs every command in the script, writing their results as they finish
+     * 
+     * @return 0 if every command succeeded, otherwise 1
+     */
+    public int run(BufferedReader script) throws IOException {
+        List<Command> commands = new ArrayList<Command>();
+        int lineNumber = 0;
+        for (String line = script.readLine(); line != null; line = script.readLine()) {
+            lineNumber++;
+            List<String> args = splitLine(line);
+            if (args.isEmpty() || args.get(0).startsWith("#"))
+                continue;
+            if (args.get(0).equals("mcpkg"))
+                args.remove(0);
+            Command command = new Command();
+            command.line = lineNumber;
+            command.args = args;
+            classify(command);
+            commands.add(command);
+        }
+
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        InputStream in = System.in;
+        outRoute = new RoutedOutputStream(out);
+        errRoute = new RoutedOutputStream(err);
+        System.setOut(new PrintStream(outRoute, true));
+        System.setErr(new PrintStream(errRoute, true));
+        System.setIn(InputStream.nullInputStream());
+
+        ExecutorService executor = Executors.newFixedThreadPool(jobs);
+        int status = 0;
+        try {
+            for (int i = 0; i < commands.size(); i++) {
+                Command command = commands.get(i);
+                List<CompletableFuture<Result>> dependencies =
+                        new ArrayList<CompletableFuture<Result>>();
+                for (int j = 0; j < i; j++)
+                    if (command.dependsOn(commands.get(j)))
+                        dependencies.add(commands.get(j).result);
+                command.result = CompletableFuture
+                        .allOf(dependencies.toArray(new CompletableFuture<?>[0]))
+                        .thenApplyAsync(ignored -> run(command), executor);
+            }
+
+            for (Command command : commands) {
+                Result result = command.result.join();
+                if (result.status != 0)
+                    status = 1;
+                out.println(MAPPER.writeValueAsString(result));
+                out.flush();
+            }
+        } finally {
+            executor.shutdownNow();
+            System.setOut(out);
+            System.setErr(err);
+            System.setIn(in);
+        }
+        return status;
+    }
+}
@@ -0,0 +1,390 @@
+package dev.benmitchell.mcpkg.cache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.System.Logger.Level;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import dev.benmitchell.mcpkg.Checksums;
+import dev.benmitchell.mcpkg.MCPKGLogger;
+import dev.benmitchell.mcpkg.Platform;
+import dev.benmitchell.mcpkg.exceptions.PackNotDownloadedException;
+import dev.benmitchell.mcpkg.packs.Pack;
+import dev.benmitchell.mcpkg.packs.Pack.Version;
+
+/**
+ * A persistent cache of downloaded pack data, shared by every world on the machine. Entries are
+ * keyed by pack ID and version, and the data is stored once per SHA-256 hash. When the cache grows
+ * past {@code Platform.getConfig().cacheMaxSize} bytes the least recently used entries are evicted.
+ * 
+ * Every process on the machine shares the cache, so each operation holds a lock on it and reads
+ * the index afresh before using it
+ */
+public class DownloadCache {
+    public static class Entry {
+        public String packId;
+        public String version;
+        public String sha256;
+        public long size;
+        public long lastAccessed;
+    }
+
+    public static class Index {
+        public List<Entry> entries = new ArrayList<Entry>();
+        public long hits;
+        public long misses;
+    }
+
+    private static DownloadCache instance = null;
+
+    /**
+     * @return The cache stored in the mcpkg data directory
+     */
+    public static synchronized DownloadCache getInstance() {
+        if (instance == null)
+            instance = new DownloadCache(Platform.getConfig().dataPath.resolve("cache"),
+                    Platform.getConfig().cacheMaxSize);
+        return instance;
+    }
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final Path cacheDir;
+    private final Path blobsDir;
+    private final Path indexFile;
+    private final Path lockFile;
+    private final long maxSize;
+    private FileChannel lockChannel = null;
+    private Index index = null;
+    private Map<String, Entry> entriesByKey;
+
+    public DownloadCache(Path cacheDir, long maxSize) {
+        this.cacheDir = cacheDir;
+        this.blobsDir = cacheDir.resolve("blobs");
+        this.indexFile = cacheDir.resolve("index.json");
+        this.lockFile = cacheDir.resolve("cache.lock");
+        this.maxSize = maxSize;
+    }
+
+    private static String getKey(String packId, String version) {
+        return packId.toLowerCase() + "@" + version;
+    }
+
+    /**
+     * @return Whether packs of this version can be cached. Packs without a version can't be told
+     *         apart from newer releases of themselves
+     */
+    private static boolean isCacheable(Pack pack) {
+        return !pack.getVersion().equals(new Version());
+    }
+
+    private Path getBlob(String sha256) {
+        return blobsDir.resolve(sha256 + ".zip");
+    }
+
+    /**
+     * Locks the cache against every other process, waiting for any that holds it. Threads in this
+     * process are kept apart by the methods being synchronized
+     */
+    private FileLock lock() throws IOException {
+        Files.createDirectories(blobsDir);
+        if (lockChannel == null)
+            lockChannel = FileChannel.open(lockFile, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE);
+        return lockChannel.lock();
+    }
+
+    /**
+     * Reads the index, which another process may have changed since it was last read. The cache
+     * must be locked
+     */
+    private void load() throws IOException {
+        index = new Index();
+        if (Files.exists(indexFile)) {
+            try {
+                index = MAPPER.readValue(indexFile.toFile(), Index.class);
+            } catch (IOException ex) {
+                MCPKGLogger.log(Level.WARNING,
+                        "The download cache index is unreadable, starting a new one");
+            }
+        }
+        entriesByKey = new HashMap<String, Entry>();
+        for (Entry entry : index.entries)
+            entriesByKey.put(getKey(entry.packId, entry.version), entry);
+    }
+
+    private void save() throws IOException {
+        Path tmpFile = Files.createTempFile(cacheDir, "index", ".json.tmp");
+        MAPPER.writeValue(tmpFile.toFile(), index);
+        Files.move(tmpFile, indexFile, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return true if the entry's data was deleted, rather than kept for another entry
+     */
+    private boolean removeEntry(Entry entry) throws IOException {
+        index.entries.remove(entry);
+        entriesByKey.remove(getKey(entry.packId, entry.version));
+        // The same data may be shared by another entry
+        for (Entry other : index.entries)
+            if (other.sha256.equals(entry.sha256))
+                return false;
+        Files.deleteIfExists(getBlob(entry.sha256));
+        return true;
+    }
+
+    /**
+     * Evicts the least recently used entries until the cache is no bigger than the given size
+     * 
+     * @return The number of entries evicted
+     */
+    private int evict(long targetSize) throws IOException {
+        List<Entry> byAge = new ArrayList<Entry>(index.entries);
+        byAge.sort(Comparator.comparingLong(entry -> entry.lastAccessed));
+
+        long size = computeSize();
+        int evicted = 0;
+        for (Entry entry : byAge) {
+            if (size <= targetSize)
+                break;
+            MCPKGLogger.log(Level.DEBUG,
+                    "Evicting '" + entry.packId + "." + entry.version + "' from the cache");
+            if (removeEntry(entry))
+                size -= entry.size;
+            evicted++;
+        }
+        return evicted;
+    }
+
+    private long computeSize() {
+        Set<String> counted = new HashSet<String>();
+        long size = 0;
+        for (Entry entry : index.entries)
+            if (counted.add(entry.sha256))
+                size += entry.size;
+        return size;
+    }
+
+    /**
+     * Copies the cached data for a pack into the download directory, if it's cached
+     * 
+     * @return true if the pack was found in the cache and its downloaded data has been set
+     */
+    public synchronized boolean fetch(Pack pack, Path downloadDir) throws IOException {
+        if (maxSize <= 0 || !isCacheable(pack))
+            return false;
+        FileLock lock = lock();
+        try {
+            load();
+            Entry entry =
+                    entriesByKey.get(getKey(pack.getPackId(), pack.getVersion().toString()));
+            Path blob = entry == null ? null : getBlob(entry.sha256);
+            if (entry == null || !Files.exists(blob) || Files.size(blob) != entry.size) {
+                if (entry != null)
+                    removeEntry(entry);
+                index.misses++;
+                save();
+                return false;
+            }
+
+            Path destination = downloadDir.resolve(pack + ".zip");
+            Files.copy(blob, destination, StandardCopyOption.REPLACE_EXISTING);
+            pack.setDownloadedData(destination.toFile(), entry.sha256);
+
+            MCPKGLogger.log(Level.INFO, "Using cached '" + pack + "'");
+            entry.lastAccessed = System.currentTimeMillis();
+            index.hits++;
+            save();
+            return true;
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * Adds a pack's downloaded data to the cache
+     */
+    public synchronized void store(Pack pack) throws IOException, PackNotDownloadedException {
+        if (maxSize <= 0 || !isCacheable(pack))
+            return;
+
+        Path data = pack.getDownloadedData().toPath();
+        String sha256 = pack.getDownloadedHash();
+        long size = Files.size(data);
+        Path tmpBlob = null;
+        if (sha256 == null || !Files.exists(getBlob(sha256))) {
+            // Hash the data while copying it in if it wasn't hashed as it downloaded. This is done
+            // before locking the cache, and the copy is only named after its hash once locked
+            Files.createDirectories(blobsDir);
+            MessageDigest digest = Checksums.newDigest();
+            tmpBlob = Files.createTempFile(blobsDir, "blob", ".tmp");
+            try (InputStream iStream = new DigestInputStream(Files.newInputStream(data), digest);
+                    OutputStream oStream = Files.newOutputStream(tmpBlob)) {
+                iStream.transferTo(oStream);
+            } catch (IOException ex) {
+                Files.delete(tmpBlob);
+                throw ex;
+            }
+            sha256 = Checksums.toHex(digest.digest());
+            // Saves hashing the data again when it's installed
+            pack.setDownloadedData(data.toFile(), sha256);
+        }
+
+        FileLock lock = null;
+        try {
+            lock = lock();
+            load();
+            addEntry(pack, sha256, size, tmpBlob);
+        } finally {
+            if (tmpBlob != null)
+                Files.deleteIfExists(tmpBlob);
+            if (lock != null)
+                lock.release();
+        }
+    }
+
+    /**
+     * Records a pack's cached data in the index. The cache must be locked
+     * 
+     * @param tmpBlob A copy of the data to move into the cache, or null if it's already there
+     */
+    private void addEntry(Pack pack, String sha256, long size, Path tmpBlob) throws IOException {
+        // Evicted by another process since it was looked for, and not worth copying again
+        if (tmpBlob == null && !Files.exists(getBlob(sha256)))
+            return;
+        if (tmpBlob != null) {
+            Path blob = getBlob(sha256);
+            if (Files.exists(blob))
+                Files.delete(tmpBlob);
+            else
+                Files.move(tmpBlob, blob, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        String key = getKey(pack.getPackId(), pack.getVersion().toString());
+        Entry entry = entriesByKey.get(key);
+        if (entry != null && !entry.sha256.equals(sha256))
+            removeEntry(entry);
+        if (entry == null || !entriesByKey.containsKey(key)) {
+            entry = new Entry();
+            entry.packId = pack.getPackId();
+            entry.version = pack.getVersion().toString();
+            index.entries.add(entry);
+            entriesByKey.put(key, entry);
+        }
+        entry.sha256 = sha256;
+        entry.size = size;
+        entry.lastAccessed = System.currentTimeMillis();
+
+        evict(maxSize);
+        save();
+    }
+
+    /**
+     * Evicts entries until the cache is no bigger than the given size, and deletes any data that
+     * no entry refers to
+     * 
+     * @return The number of entries evicted
+     */
+    public synchronized int prune(long targetSize) throws IOException {
+        FileLock lock = lock();
+        try {
+            load();
+            int evicted = evict(targetSize);
+
+            Set<String> referenced = new HashSet<String>();
+            for (Entry entry : index.entries)
+                referenced.add(getBlob(entry.sha256).getFileName().toString());
+            try (var blobs = Files.list(blobsDir)) {
+                for (Path blob : (Iterable<Path>) blobs::iterator) {
+                    String fileName = blob.getFileName().toString();
+                    // Skip data still being copied in by another process
+                    if (fileName.endsWith(".tmp") || referenced.contains(fileName))
+                        continue;
+                    Files.delete(blob);
+                }
+            }
+
+            save();
+            return evicted;
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * @return Every entry in the cache
+     */
+    public synchronized List<Entry> getEntries() throws IOException {
+        FileLock lock = lock();
+        try {
+            load();
+            return new ArrayList<Entry>(index.entries);
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * @return The total size of the cached data in bytes
+     */
+    public synchronized long getSize() throws IOException {
+        FileLock lock = lock();
+        try {
+            load();
+            return computeSize();
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * @return The maximum size of the cached data in bytes
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return The number of times a pack was found in the cache
+     */
+    public synchronized long getHits() throws IOException {
+        FileLock lock = lock();
+        try {
+            load();
+            return index.hits;
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * @return The number of times a pack had to be downloaded
+     */
+    public synchronized long getMisses() throws IOException {
+        FileLock lock = lock();
+        try {
+            load();
+            return index.misses;
+        } finally {
+            lock.release();
+        }
+    }
+}
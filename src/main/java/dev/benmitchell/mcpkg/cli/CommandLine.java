@@ -3,22 +3,41 @@ package dev.benmitchell.mcpkg.cli;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.lang.System.Logger.Level;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
+import org.apache.commons.io.FileUtils;
 import org.fusesource.jansi.Ansi;
 import org.fusesource.jansi.Ansi.Color;
 
 import org.jline.terminal.TerminalBuilder;
 
+import dev.benmitchell.mcpkg.MCPKGLogger;
+import dev.benmitchell.mcpkg.Platform;
+import dev.benmitchell.mcpkg.batch.Batch;
+import dev.benmitchell.mcpkg.cache.DownloadCache;
+import dev.benmitchell.mcpkg.daemon.Daemon;
+import dev.benmitchell.mcpkg.exceptions.DownloadFailedException;
+import dev.benmitchell.mcpkg.exceptions.IncompatiblePackException;
 import dev.benmitchell.mcpkg.exceptions.InvalidDirectoryException;
+import dev.benmitchell.mcpkg.exceptions.MCPKGException;
+import dev.benmitchell.mcpkg.exceptions.MissingDependencyException;
 import dev.benmitchell.mcpkg.exceptions.PackNotDownloadedException;
 import dev.benmitchell.mcpkg.exceptions.PackNotFoundException;
+import dev.benmitchell.mcpkg.manifest.InstallManifest;
+import dev.benmitchell.mcpkg.packs.InstallTransaction;
 import dev.benmitchell.mcpkg.packs.Pack;
-import dev.benmitchell.mcpkg.packs.Pack.Version;
 import dev.benmitchell.mcpkg.sources.LocalSource;
+import dev.benmitchell.mcpkg.sources.PackResolver;
 import dev.benmitchell.mcpkg.sources.PackSource;
 import dev.benmitchell.mcpkg.sources.RemoteSource;
+import dev.benmitchell.mcpkg.store.PackStore;
 import dev.benmitchell.mcpkg.vanillatweaks.VTSource;
 
 /**
@@ -26,6 +45,58 @@ import dev.benmitchell.mcpkg.vanillatweaks.VTSource;
  * status of the program. One function call per command
  */
 public class CommandLine {
+    // The formats that packs can be shown in with --output
+    public static final String TEXT_OUTPUT = "text";
+    public static final List<String> OUTPUT_FORMATS =
+            List.of(TEXT_OUTPUT, PackJsonWriter.JSON, PackJsonWriter.NDJSON);
+
+    // Shared by every command run in the process, so that a daemon keeps them loaded
+    private static RemoteSource sharedRemoteSource = null;
+    private static final Map<Path, LocalSource> sharedLocalSources =
+            new HashMap<Path, LocalSource>();
+    private static LocalSource sharedAllWorldsSource = null;
+    // The width to fit output to, or -1 to use the terminal's
+    private static int consoleWidth = -1;
+
+    /**
+     * @return The remote source shared by every command run in the process
+     */
+    public static synchronized RemoteSource getRemoteSource() {
+        if (sharedRemoteSource == null)
+            sharedRemoteSource = new VTSource();
+        return sharedRemoteSource;
+    }
+
+    /**
+     * @param allWorlds Whether the source should include every world rather than only the
+     *        current world
+     * @return The local source shared by every command run in the process from the current
+     *         working directory
+     */
+    public static synchronized LocalSource getLocalSource(boolean allWorlds) {
+        if (allWorlds) {
+            if (sharedAllWorldsSource == null)
+                sharedAllWorldsSource = new LocalSource(true);
+            return sharedAllWorldsSource;
+        }
+        return sharedLocalSources.computeIfAbsent(Platform.getWorkingDir(),
+                directory -> new LocalSource(false));
+    }
+
+    /**
+     * Fits output to the given width rather than the terminal's, for commands whose output goes
+     * to another process's terminal
+     * 
+     * @param width The width, or -1 to go back to using the terminal's
+     */
+    public static void setConsoleWidth(int width) {
+        consoleWidth = width;
+    }
+
+    private static int getConsoleWidth() throws IOException {
+        return consoleWidth >= 0 ? consoleWidth : TerminalBuilder.terminal().getWidth();
+    }
+
     private static int addColourString(StringBuilder builder, String strToColour, Color colour,
             boolean bright, boolean bold) {
         Ansi ansi = Ansi.ansi();
@@ -46,74 +117,13 @@ public class CommandLine {
         return addColourString(builder, strToColor, color, false, false);
     }
 
-    private static String printPackShort(Pack pack, RemoteSource remoteSource, int maxWidth)
-            throws IOException {
-        // More data is stored in the remote source version, so find that
-        try {
-            pack = remoteSource.getPack(pack.getPackId());
-        } catch (PackNotFoundException ex) {
-            // Ignore this error, it's probably not managed by this tool
-        }
-
-        int count = 0;
-        StringBuilder builder = new StringBuilder();
-        count += addColourString(builder, pack.getDisplayName(), Color.BLUE);
-        builder.append(" (");
-        count += " (".length();
-        count += addColourString(builder, pack.getPackId(), Color.GREEN);
-
-        if (!pack.getVersion().equals(new Version())) {
-            builder.append(" v.");
-            count += " v.".length();
-            count += addColourString(builder, pack.getVersion().toString(), Color.YELLOW);
-        }
-        builder.append(") ");
-        count += ") ".length();
-
-        count += pack.getDescription().length();
-
-        if (count >= maxWidth) {
-            try {
-                builder.append(pack.getDescription().substring(0,
-                        pack.getDescription().length() - (count - maxWidth) - 3));
-                builder.append("...");
-            } catch (StringIndexOutOfBoundsException ex) {
-                // Do nothing, we just want to catch the exception
-                // MCPKGLogger.err(ex);
-            }
-        } else {
-            builder.append(pack.getDescription());
-        }
-        return builder.toString();
-    }
-
-    private static String printPackLong(Pack pack, RemoteSource remoteSource) throws IOException {
-        // More data is stored in the remote source version, so find that
-        try {
-            pack = remoteSource.getPack(pack.getPackId());
-        } catch (PackNotFoundException ex) {
-            // Ignore this error, it's probably not managed by this tool
-        }
-
-        StringBuilder builder = new StringBuilder();
-        addColourString(builder, "id: ", Color.DEFAULT, false, true);
-        addColourString(builder, pack.getPackId(), Color.GREEN);
-        addColourString(builder, "\n\tname: ", Color.DEFAULT, false, true);
-        addColourString(builder, pack.getDisplayName(), Color.BLUE);
-        if (!pack.getVersion().equals(new Version())) {
-            addColourString(builder, "\n\tversion: ", Color.DEFAULT, false, true);
-            addColourString(builder, pack.getVersion().toString(), Color.YELLOW);
-        }
-        addColourString(builder, "\n\tdescription: ", Color.DEFAULT, false, true);
-        builder.append(pack.getDescription());
-
-        return builder.toString();
-    }
-
     private static boolean askForConfirmation(String question) throws IOException {
         System.err.print(question + " [Y/n]: ");
         try (BufferedReader reader = new BufferedReader(new InputStreamReader(System.in))) {
             String input = reader.readLine();
+            // Nobody to answer, so nothing is replaced
+            if (input == null)
+                return false;
             if ((input.length() > 0 && Character.toLowerCase(input.charAt(0)) == 'y')
                     || input.length() == 0)
                 return true;
@@ -122,7 +132,13 @@ public class CommandLine {
     }
 
     /**
-     * Local-source-aware install method
+     * Local-source-aware install method. Every pack the packs depend on that isn't installed is
+     * installed along with them, one layer of the {@link PackResolver}'s plan at a time, so each
+     * pack is only installed after its dependencies. The packs in a layer are downloaded
+     * concurrently. Everything is installed in a single {@link InstallTransaction}: each pack is
+     * staged as soon as its download finishes, and nothing in the packs directories changes until
+     * every layer has been staged. Any installed version of a pack is only removed along with its
+     * replacement being installed
      * 
      * @param packs The packs to install
      * @param remoteSource The remote source to get the packs from
@@ -133,34 +149,82 @@ public class CommandLine {
      *         as a bug
      * @throws PackNotDownloadedException If a locally installed pack is not downloaded. Treat as a
      *         bug
+     * @throws MissingDependencyException If a pack depends on a pack that isn't in the catalog
+     * @throws IncompatiblePackException If a pack is incompatible with another pack being
+     *         installed, or with an installed pack. Nothing is installed
+     * @throws DownloadFailedException If one or more packs couldn't be downloaded. Every other pack
+     *         that doesn't depend on them is still installed
      */
     private static void installPacks(List<Pack> packs, RemoteSource remoteSource, boolean confirm)
-            throws InvalidDirectoryException, IOException, PackNotFoundException,
-            PackNotDownloadedException {
+            throws IOException, MCPKGException {
         List<Pack> packsToInstall = new ArrayList<Pack>();
+        Map<Pack, Pack> replacedPacks = new HashMap<Pack, Pack>();
 
         // Check version differences between packs
-        LocalSource localSource = new LocalSource();
+        LocalSource localSource = getLocalSource(false);
         for (Pack pack : packs) {
-            // If the pack is already installed and its version is >= the version we're
-            // trying to install
-            if (localSource.hasPack(pack) && localSource.getPack(pack.getPackId()).getVersion()
-                    .compareTo(pack.getVersion()) >= 0) {
-                if (confirm && !askForConfirmation(pack
-                        + " is already installed at the latest version. Do you want to replace?"))
+            if (localSource.hasPack(pack)) {
+                Pack installedPack = localSource.getPack(pack.getPackId());
+                // If the pack is already installed and its version is >= the version we're
+                // trying to install
+                if (installedPack.getVersion().compareTo(pack.getVersion()) >= 0 && confirm
+                        && !askForConfirmation(pack + " is already installed at the latest"
+                                + " version. Do you want to replace?"))
                     // Skip this pack if the user decides to not install
                     continue;
-                // Remove the old pack to prepare for the installation of the new one
-                localSource.getPack(pack.getPackId()).uninstall();
+                replacedPacks.put(pack, installedPack);
             }
 
             packsToInstall.add(pack);
         }
 
-        // Install the new packs
-        remoteSource.downloadPacks(packsToInstall);
-        for (Pack pack : packsToInstall)
-            pack.install();
+        PackResolver resolver = remoteSource.getResolver();
+        List<List<Pack>> layers = resolver.resolve(packsToInstall, localSource.getPacks());
+
+        // Found here rather than on the download threads, as they depend on the working directory
+        Map<Pack, Path> installDirs = new HashMap<Pack, Path>();
+        for (List<Pack> layer : layers)
+            for (Pack pack : layer)
+                installDirs.put(pack, pack.getInstallDir());
+
+        // Stage each new pack as soon as its download finishes
+        InstallTransaction transaction = new InstallTransaction();
+        Map<Pack, Throwable> failures = new LinkedHashMap<Pack, Throwable>();
+        try {
+            for (List<Pack> layer : layers) {
+                List<Pack> layerToDownload = new ArrayList<Pack>();
+                for (Pack pack : layer) {
+                    // A pack can't be installed without the dependencies that failed
+                    List<String> failedDependencies = new ArrayList<String>();
+                    for (Pack dependency : resolver.getDependencies(pack))
+                        if (failures.containsKey(dependency))
+                            failedDependencies.add(dependency.getPackId());
+                    if (failedDependencies.isEmpty())
+                        layerToDownload.add(pack);
+                    else
+                        failures.put(pack,
+                                new MissingDependencyException(failedDependencies, pack));
+                }
+
+                try {
+                    remoteSource.downloadPacks(layerToDownload, pack -> {
+                        transaction.stageInstall(pack, installDirs.get(pack));
+                        if (replacedPacks.containsKey(pack))
+                            transaction.stageUninstall(replacedPacks.get(pack));
+                    });
+                } catch (DownloadFailedException ex) {
+                    failures.putAll(ex.getFailures());
+                }
+            }
+        } catch (IOException | MCPKGException | RuntimeException ex) {
+            transaction.rollback();
+            throw ex;
+        }
+
+        // Every pack that did download is still installed
+        transaction.commit();
+        if (!failures.isEmpty())
+            throw new DownloadFailedException(failures);
     }
 
     /**
@@ -169,12 +233,17 @@ public class CommandLine {
     public static int usage() {
         System.out.println("mcpkg - A multi-purpose package manager for Minecraft");
         System.out.println("Commands:");
-        System.out.println("    install   <pack-ids>");
+        System.out.println("    install   <pack-ids> | --category <category>");
         System.out.println("    uninstall <pack-ids>");
-        System.out.println("    update    [<pack-ids>]");
-        System.out.println("    list      [--installed]");
-        System.out.println("    search    <keywords> [--installed]");
+        System.out.println("    update    [<pack-ids>] [--check]");
+        System.out.println("    list      [--installed [--all-worlds]]");
+        System.out.println("    search    <keywords> [--installed] [--all] [--fuzzy]");
         System.out.println("    info      pack-id");
+        System.out.println("    --output  text | json | ndjson (list, search, info, update)");
+        System.out.println("    verify    [--all-worlds]");
+        System.out.println("    cache     stats | prune [<max-size>]");
+        System.out.println("    batch     [<file>] [--jobs <count>]");
+        System.out.println("    daemon    [stop]");
         System.out.println("    --help");
 
         return 0;
@@ -184,12 +253,25 @@ public class CommandLine {
      * Installs one or multiple packs
      * 
      * @param packIds The IDs of the packs to install
+     * @param category A category to install every pack in, or an empty string for none
+     * @param confirm Whether to ask before replacing installed packs
      */
-    public static int install(List<String> packIds) throws IOException, PackNotDownloadedException,
-            InvalidDirectoryException, PackNotFoundException {
-        RemoteSource source = new VTSource();
+    public static int install(List<String> packIds, String category, boolean confirm)
+            throws IOException, MCPKGException {
+        RemoteSource source = getRemoteSource();
         List<Pack> packs = source.getPacks(packIds);
-        installPacks(packs, source, true);
+        if (!category.isEmpty()) {
+            int requested = packs.size();
+            for (Pack pack : source.getPacks())
+                if (category.equalsIgnoreCase(pack.getCategory()))
+                    packs.add(pack);
+            if (packs.size() == requested) {
+                MCPKGLogger.log(Level.ERROR, "There are no packs in the category '" + category
+                        + "'");
+                return 1;
+            }
+        }
+        installPacks(packs, source, confirm);
         return 0;
     }
 
@@ -200,7 +282,7 @@ public class CommandLine {
      */
     public static int uninstall(List<String> packIds)
             throws PackNotDownloadedException, IOException {
-        LocalSource source = new LocalSource();
+        LocalSource source = getLocalSource(false);
         for (Pack pack : source.getPacks(packIds))
             pack.uninstall();
         return 0;
@@ -210,19 +292,40 @@ public class CommandLine {
      * Updates one or multiple packs
      * 
      * @param packIds The IDs of the packs to update. Will update all if no IDs are specified
+     * @param confirm Whether to ask before replacing installed packs
+     * @param check Whether to only show the packs that can be updated, without updating them
+     * @param output The format to show the packs in with check, "text", "json" or "ndjson"
      */
-    public static int update(List<String> packIds) throws InvalidDirectoryException,
-            PackNotFoundException, PackNotDownloadedException, IOException {
+    public static int update(List<String> packIds, boolean confirm, boolean check, String output)
+            throws IOException, MCPKGException {
         List<Pack> packsToUpdate;
-        LocalSource localSource = new LocalSource();
+        LocalSource localSource = getLocalSource(false);
         if (packIds.size() == 0)
             // Update everything
             packsToUpdate = localSource.getPacks();
         else
             packsToUpdate = localSource.getPacks(packIds);
 
-        installPacks(packsToUpdate, new VTSource(), true);
+        RemoteSource remoteSource = getRemoteSource();
+        if (!check) {
+            installPacks(remoteSource.getUpdatable(packsToUpdate), remoteSource, confirm);
+            return 0;
+        }
 
+        Map<Pack, Pack> updates = remoteSource.getUpdates(packsToUpdate);
+        if (!output.equals(TEXT_OUTPUT)) {
+            try (PackJsonWriter writer = new PackJsonWriter(output, remoteSource, localSource)) {
+                for (var update : updates.entrySet())
+                    writer.writeUpdate(update.getKey(), update.getValue());
+            }
+            return 0;
+        }
+        PackRenderer renderer = new PackRenderer(remoteSource);
+        if (updates.isEmpty())
+            renderer.writeLine("All packs are up to date");
+        for (var update : updates.entrySet())
+            renderer.writeUpdate(update.getKey(), update.getValue());
+        renderer.flush();
         return 0;
     }
 
@@ -230,19 +333,50 @@ public class CommandLine {
      * Lists all packs
      * 
      * @param installed Whether to limit the listing to only installed packs
+     * @param allWorlds Whether to list the installed packs of every world, grouped by world,
+     *        rather than only the current world's
+     * @param output The format to list the packs in, "text", "json" or "ndjson"
      */
-    public static int list(boolean installed) throws IOException, PackNotFoundException {
+    public static int list(boolean installed, boolean allWorlds, String output)
+            throws IOException, PackNotFoundException {
         PackSource source;
-        RemoteSource remoteSource = new VTSource();
+        RemoteSource remoteSource = getRemoteSource();
         if (installed)
-            source = new LocalSource();
+            source = getLocalSource(allWorlds);
         else
             source = remoteSource;
 
-        int consoleWidth = TerminalBuilder.terminal().getWidth();
-        for (Pack pack : source.getPacks()) {
-            System.out.println(printPackShort(pack, remoteSource, consoleWidth));
+        if (!output.equals(TEXT_OUTPUT)) {
+            // Each pack records its own world, so there's no need to group them
+            try (PackJsonWriter writer =
+                    new PackJsonWriter(output, remoteSource, getLocalSource(allWorlds))) {
+                for (Pack pack : source.getPacks())
+                    writer.writePack(pack);
+            }
+            return 0;
         }
+
+        int consoleWidth = getConsoleWidth();
+        PackRenderer renderer = new PackRenderer(remoteSource);
+        if (installed && allWorlds) {
+            LocalSource localSource = (LocalSource) source;
+            for (var world : localSource.getPacksByWorld().entrySet()) {
+                if (world.getValue().isEmpty())
+                    continue;
+                renderer.writeHeading(world.getKey() + ":");
+                for (Pack pack : world.getValue())
+                    renderer.writeShort(pack, 2, consoleWidth);
+            }
+            renderer.writeHeading("Resource packs:");
+            for (Pack pack : localSource.getResourcePacks())
+                renderer.writeShort(pack, 2, consoleWidth);
+            renderer.flush();
+            return 0;
+        }
+
+        for (Pack pack : source.getPacks())
+            renderer.writeShort(pack, 0, consoleWidth);
+        renderer.flush();
         return 0;
     }
 
@@ -251,19 +385,36 @@ public class CommandLine {
      * 
      * @param keywords A list of keywords used to identify one or many packs
      * @param installed Whether to limit the search to only installed packs
+     * @param matchAll Whether results must match every keyword rather than any of them
+     * @param fuzzy Whether to match pack names that are close to the keywords, allowing for typos
+     * @param output The format to show the results in, "text", "json" or "ndjson"
      */
-    public static int search(List<String> keywords, boolean installed)
+    public static int search(List<String> keywords, boolean installed, boolean matchAll,
+            boolean fuzzy, String output)
             throws IOException, PackNotFoundException {
         PackSource source;
-        RemoteSource remoteSource = new VTSource();
+        RemoteSource remoteSource = getRemoteSource();
         if (installed)
-            source = new LocalSource();
+            source = getLocalSource(false);
         else
             source = remoteSource;
 
-        int consoleWidth = TerminalBuilder.terminal().getWidth();
-        for (Pack pack : source.searchForPacks(keywords))
-            System.out.println(printPackShort(pack, remoteSource, consoleWidth));
+        List<Pack> results = fuzzy ? source.fuzzySearchForPacks(keywords, matchAll)
+                : source.searchForPacks(keywords, matchAll);
+        if (!output.equals(TEXT_OUTPUT)) {
+            try (PackJsonWriter writer =
+                    new PackJsonWriter(output, remoteSource, getLocalSource(false))) {
+                for (Pack pack : results)
+                    writer.writePack(pack);
+            }
+            return 0;
+        }
+
+        int consoleWidth = getConsoleWidth();
+        PackRenderer renderer = new PackRenderer(remoteSource);
+        for (Pack pack : results)
+            renderer.writeShort(pack, 0, consoleWidth);
+        renderer.flush();
         return 0;
     }
 
@@ -271,11 +422,165 @@ public class CommandLine {
      * Gets detailed information about a pack or packs
      * 
      * @param packIds The IDs of the packs to get information about
+     * @param output The format to show the packs in, "text", "json" or "ndjson"
      */
-    public static int info(List<String> packIds) throws IOException {
-        RemoteSource remoteSource = new VTSource();
+    public static int info(List<String> packIds, String output) throws IOException {
+        RemoteSource remoteSource = getRemoteSource();
+        if (!output.equals(TEXT_OUTPUT)) {
+            try (PackJsonWriter writer =
+                    new PackJsonWriter(output, remoteSource, getLocalSource(false))) {
+                for (Pack pack : remoteSource.getPacks(packIds))
+                    writer.writePack(pack);
+            }
+            return 0;
+        }
+        PackRenderer renderer = new PackRenderer(remoteSource);
         for (Pack pack : remoteSource.getPacks(packIds))
-            System.out.println(printPackLong(pack, remoteSource));
+            renderer.writeLong(pack);
+        renderer.flush();
         return 0;
     }
+
+    /**
+     * Checks that the installed packs are still exactly as they were installed
+     * 
+     * @param allWorlds Whether to check the packs of every world rather than only the current
+     *        world's
+     * @return 1 if any pack is missing or damaged
+     */
+    public static int verify(boolean allWorlds) throws IOException {
+        Map<Path, String> results =
+                InstallManifest.verify(getLocalSource(allWorlds).getDirectories());
+        int problems = 0;
+        for (var result : results.entrySet()) {
+            if (result.getValue() == null)
+                continue;
+            StringBuilder builder = new StringBuilder();
+            addColourString(builder, result.getKey().toString(), Color.RED);
+            builder.append(" ").append(result.getValue());
+            System.out.println(builder);
+            // Otherwise reinstalling it would link the same damaged data back in
+            PackStore.getInstance().removeIfDamaged(result.getKey());
+            problems++;
+        }
+
+        if (problems == 0) {
+            System.out.println("Verified " + results.size() + " pack(s)");
+            return 0;
+        }
+        System.out.println(problems + " of " + results.size()
+                + " pack(s) failed verification. Reinstall them to repair them");
+        return 1;
+    }
+
+    /**
+     * Parses a size such as "512M" or "2G" into bytes
+     */
+    private static long parseSize(String size) {
+        String digits = size.toUpperCase();
+        long multiplier = 1;
+        if (digits.endsWith("B"))
+            digits = digits.substring(0, digits.length() - 1);
+        if (digits.endsWith("K"))
+            multiplier = 1024;
+        else if (digits.endsWith("M"))
+            multiplier = 1024 * 1024;
+        else if (digits.endsWith("G"))
+            multiplier = 1024 * 1024 * 1024;
+        if (multiplier != 1)
+            digits = digits.substring(0, digits.length() - 1);
+        return Long.parseLong(digits.strip()) * multiplier;
+    }
+
+    /**
+     * Inspects or cleans the download cache and the pack store. Pruning also removes packs from
+     * the store that are no longer installed anywhere
+     * 
+     * @param args "stats", or "prune" followed by an optional size to shrink the cache to
+     */
+    public static int cache(List<String> args) throws IOException {
+        DownloadCache cache = DownloadCache.getInstance();
+        PackStore store = PackStore.getInstance();
+        if (args.size() > 0 && args.get(0).equals("prune")) {
+            long targetSize = cache.getMaxSize();
+            if (args.size() > 1) {
+                try {
+                    targetSize = parseSize(args.get(1));
+                } catch (NumberFormatException ex) {
+                    MCPKGLogger.log(Level.ERROR, "'" + args.get(1) + "' is not a valid size");
+                    return 1;
+                }
+            }
+            int evicted = cache.prune(targetSize);
+            System.out.println("Evicted " + evicted + " pack(s), "
+                    + FileUtils.byteCountToDisplaySize(cache.getSize()) + " remaining");
+            int collected = store.collectGarbage();
+            System.out.println("Removed " + collected + " unused pack(s) from the pack store");
+            return 0;
+        }
+        if (args.size() > 0 && !args.get(0).equals("stats"))
+            return usage();
+
+        long requests = cache.getHits() + cache.getMisses();
+        System.out.println("Packs:    " + cache.getEntries().size());
+        System.out.println("Size:     " + FileUtils.byteCountToDisplaySize(cache.getSize()) + " / "
+                + FileUtils.byteCountToDisplaySize(cache.getMaxSize()));
+        System.out.println("Hits:     " + cache.getHits());
+        System.out.println("Misses:   " + cache.getMisses());
+        if (requests > 0)
+            System.out.println("Hit rate: " + (cache.getHits() * 100 / requests) + "%");
+        System.out.println("Store:    " + store.getObjectCount() + " pack(s) installed "
+                + store.getReferenceCount() + " time(s), "
+                + FileUtils.byteCountToDisplaySize(store.getSize()));
+        return 0;
+    }
+
+    /**
+     * Runs a script of commands, one per line, in this process. Each line can have its own
+     * --world, --dir and -y flags. The result of each command is written as a line of JSON
+     * 
+     * @param args The script file, or none or "-" to read the script from standard input
+     * @param jobs The most commands to run at the same time, or an empty string for one per
+     *        processor
+     * @return 1 if any command failed
+     */
+    public static int batch(List<String> args, String jobs) throws IOException {
+        int jobCount = Runtime.getRuntime().availableProcessors();
+        if (!jobs.isEmpty()) {
+            try {
+                jobCount = Integer.parseInt(jobs);
+            } catch (NumberFormatException ex) {
+                jobCount = 0;
+            }
+            if (jobCount < 1) {
+                MCPKGLogger.log(Level.ERROR, "'" + jobs + "' is not a valid number of jobs");
+                return 1;
+            }
+        }
+
+        Batch batch = new Batch(jobCount);
+        if (args.isEmpty() || args.get(0).equals("-"))
+            return batch.run(new BufferedReader(new InputStreamReader(System.in)));
+        try (BufferedReader script = Files.newBufferedReader(
+                Platform.getWorkingDir().resolve(args.get(0)))) {
+            return batch.run(script);
+        }
+    }
+
+    /**
+     * Runs a daemon that later commands are handed to, so that they don't each have to start up
+     * and load the catalog. Runs until it's stopped with "daemon stop"
+     * 
+     * @param args Empty to run a daemon, or "stop" to stop the running one. A running daemon stops
+     *        itself, so "stop" only reaches here when none is running
+     */
+    public static int daemon(List<String> args) throws IOException {
+        if (args.size() > 0 && args.get(0).equals("stop")) {
+            MCPKGLogger.log(Level.ERROR, "No daemon is running");
+            return 1;
+        }
+        if (args.size() > 0)
+            return usage();
+        return new Daemon().serve();
+    }
 }
@@ -0,0 +1,132 @@
+package dev.benmitchell.mcpkg.cli;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+
+import dev.benmitchell.mcpkg.Platform;
+import dev.benmitchell.mcpkg.exceptions.PackNotDownloadedException;
+import dev.benmitchell.mcpkg.packs.LocalPack;
+import dev.benmitchell.mcpkg.packs.Pack;
+import dev.benmitchell.mcpkg.packs.Pack.Version;
+import dev.benmitchell.mcpkg.sources.LocalSource;
+import dev.benmitchell.mcpkg.sources.RemoteSource;
+
+/**
+ * Streams packs to standard output as JSON for scripts, writing each pack as soon as it's given
+ * rather than collecting them first. With "json" the packs are the elements of a single array,
+ * and with "ndjson" each pack is a JSON object on a line of its own.
+ * 
+ * Each pack is joined up with the same pack in the other source by ID, so both installed and
+ * remote packs have their category and whether (and where) they're installed
+ */
+class PackJsonWriter implements Closeable {
+    public static final String JSON = "json";
+    public static final String NDJSON = "ndjson";
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final Version NO_VERSION = new Version();
+
+    private final JsonGenerator generator;
+    private final boolean lines;
+    private final RemoteSource remoteSource;
+    private final LocalSource localSource;
+
+    /**
+     * @param format {@link #JSON} or {@link #NDJSON}
+     * @param remoteSource The source to get installed packs' categories from
+     * @param localSource The source to find out which remote packs are installed from
+     */
+    PackJsonWriter(String format, RemoteSource remoteSource, LocalSource localSource)
+            throws IOException {
+        this.remoteSource = remoteSource;
+        this.localSource = localSource;
+        lines = format.equals(NDJSON);
+        generator = JSON_FACTORY.createGenerator(System.out);
+        // Standard output stays open for anything written after
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        if (lines)
+            generator.setRootValueSeparator(new SerializedString(""));
+        else
+            generator.writeStartArray();
+    }
+
+    /**
+     * @return The name of the world a pack is installed in, or null if it's not a data pack
+     */
+    private static String getWorld(Pack pack) {
+        try {
+            Path directory = pack.getDownloadedData().toPath().toAbsolutePath().getParent();
+            return Platform.isADataPacksDir(directory)
+                    ? directory.getParent().getFileName().toString()
+                    : null;
+        } catch (PackNotDownloadedException ex) {
+            return null;
+        }
+    }
+
+    private static String getVersion(Pack pack) {
+        return pack.getVersion().equals(NO_VERSION) ? null : pack.getVersion().toString();
+    }
+
+    private void writeFields(Pack pack) throws IOException {
+        Pack installedPack = pack instanceof LocalPack ? pack
+                : localSource.getPackById(pack.getPackId());
+        Pack remotePack = pack instanceof LocalPack ? remoteSource.getPackById(pack.getPackId())
+                : pack;
+
+        generator.writeStringField("id", pack.getPackId());
+        generator.writeStringField("name", pack.getDisplayName());
+        generator.writeStringField("type", pack.getPackType().name().toLowerCase());
+        generator.writeStringField("version", getVersion(pack));
+        generator.writeStringField("category",
+                remotePack == null ? null : remotePack.getCategory());
+        generator.writeStringField("description", pack.getDescription());
+        generator.writeBooleanField("installed", installedPack != null);
+        generator.writeStringField("installedVersion",
+                installedPack == null ? null : getVersion(installedPack));
+        generator.writeStringField("world", installedPack == null ? null : getWorld(installedPack));
+    }
+
+    private void endRecord() throws IOException {
+        generator.writeEndObject();
+        // Each line is flushed as it's finished, so that a reader piped from this sees packs as
+        // they come rather than whenever the generator's buffer fills
+        if (lines) {
+            generator.writeRaw('\n');
+            generator.flush();
+        }
+    }
+
+    /**
+     * Writes a pack, either installed or from the remote source
+     */
+    void writePack(Pack pack) throws IOException {
+        generator.writeStartObject();
+        writeFields(pack);
+        endRecord();
+    }
+
+    /**
+     * Writes an installed pack that can be updated, along with the version it can be updated to
+     */
+    void writeUpdate(Pack installed, Pack available) throws IOException {
+        generator.writeStartObject();
+        writeFields(installed);
+        generator.writeStringField("availableVersion", getVersion(available));
+        endRecord();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!lines) {
+            generator.writeEndArray();
+            generator.writeRaw('\n');
+        }
+        generator.close();
+    }
+}
@@ -0,0 +1,157 @@
+package dev.benmitchell.mcpkg.cli;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.fusesource.jansi.Ansi;
+import org.fusesource.jansi.Ansi.Color;
+
+import dev.benmitchell.mcpkg.packs.LocalPack;
+import dev.benmitchell.mcpkg.packs.Pack;
+import dev.benmitchell.mcpkg.packs.Pack.Version;
+import dev.benmitchell.mcpkg.sources.RemoteSource;
+
+/**
+ * Writes packs to standard output for list, search and info. Output is buffered and only written
+ * when {@link #flush()} is called, and the colour codes are built once rather than for every pack.
+ * Installed packs are shown with the details of the same pack in the remote source, which are
+ * looked up by ID through the remote source's index
+ */
+class PackRenderer {
+    private static final String BLUE = Ansi.ansi().fg(Color.BLUE).toString();
+    private static final String GREEN = Ansi.ansi().fg(Color.GREEN).toString();
+    private static final String YELLOW = Ansi.ansi().fg(Color.YELLOW).toString();
+    private static final String BOLD = Ansi.ansi().fg(Color.DEFAULT).bold().toString();
+    private static final String HEADING = Ansi.ansi().bold().toString();
+    private static final String RESET = Ansi.ansi().reset().toString();
+    private static final Version NO_VERSION = new Version();
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final RemoteSource remoteSource;
+    private final Writer out =
+            new BufferedWriter(new OutputStreamWriter(System.out), BUFFER_SIZE);
+
+    /**
+     * @param remoteSource The source to get installed packs' details from
+     */
+    PackRenderer(RemoteSource remoteSource) {
+        this.remoteSource = remoteSource;
+    }
+
+    /**
+     * @return The same pack in the remote source, which has more details, or the pack itself if
+     *         it's not in the remote source
+     */
+    private Pack getRemotePack(Pack pack) throws IOException {
+        if (!(pack instanceof LocalPack))
+            return pack;
+        Pack remotePack = remoteSource.getPackById(pack.getPackId());
+        return remotePack == null ? pack : remotePack;
+    }
+
+    private void writeColoured(String colour, String text) throws IOException {
+        out.write(colour);
+        out.write(text);
+        out.write(RESET);
+    }
+
+    /**
+     * Writes a pack on one line, cutting its description short to fit the width
+     * 
+     * @param indent The number of spaces before the pack
+     * @param width The width of the line, including the indent
+     */
+    void writeShort(Pack pack, int indent, int width) throws IOException {
+        pack = getRemotePack(pack);
+        for (int i = 0; i < indent; i++)
+            out.write(' ');
+        int maxWidth = width - indent;
+
+        int count = 0;
+        writeColoured(BLUE, pack.getDisplayName());
+        count += pack.getDisplayName().length();
+        out.write(" (");
+        count += " (".length();
+        writeColoured(GREEN, pack.getPackId());
+        count += pack.getPackId().length();
+        if (!pack.getVersion().equals(NO_VERSION)) {
+            String version = pack.getVersion().toString();
+            out.write(" v.");
+            writeColoured(YELLOW, version);
+            count += " v.".length() + version.length();
+        }
+        out.write(") ");
+        count += ") ".length();
+
+        String description = pack.getDescription();
+        count += description.length();
+        if (count < maxWidth) {
+            out.write(description);
+        } else {
+            // Left out altogether if there's no room for any of it
+            int kept = description.length() - (count - maxWidth) - 3;
+            if (kept >= 0) {
+                out.write(description, 0, kept);
+                out.write("...");
+            }
+        }
+        out.write('\n');
+    }
+
+    /**
+     * Writes a pack's details over several lines
+     */
+    void writeLong(Pack pack) throws IOException {
+        pack = getRemotePack(pack);
+        writeColoured(BOLD, "id: ");
+        writeColoured(GREEN, pack.getPackId());
+        writeColoured(BOLD, "\n\tname: ");
+        writeColoured(BLUE, pack.getDisplayName());
+        if (!pack.getVersion().equals(NO_VERSION)) {
+            writeColoured(BOLD, "\n\tversion: ");
+            writeColoured(YELLOW, pack.getVersion().toString());
+        }
+        writeColoured(BOLD, "\n\tdescription: ");
+        out.write(pack.getDescription());
+        out.write('\n');
+    }
+
+    /**
+     * Writes a pack that can be updated, with its installed and available versions
+     */
+    void writeUpdate(Pack installed, Pack available) throws IOException {
+        writeColoured(BLUE, available.getDisplayName());
+        out.write(" (");
+        writeColoured(GREEN, available.getPackId());
+        out.write(") ");
+        writeColoured(YELLOW, installed.getVersion().toString());
+        out.write(" -> ");
+        writeColoured(YELLOW, available.getVersion().toString());
+        out.write('\n');
+    }
+
+    /**
+     * Writes a line of plain text
+     */
+    void writeLine(String line) throws IOException {
+        out.write(line);
+        out.write('\n');
+    }
+
+    /**
+     * Writes a bold heading, such as a world's name
+     */
+    void writeHeading(String heading) throws IOException {
+        writeColoured(HEADING, heading);
+        out.write('\n');
+    }
+
+    /**
+     * Writes everything rendered so far to standard output
+     */
+    void flush() throws IOException {
+        out.flush();
+    }
+}
@@ -0,0 +1,303 @@
+package dev.benmitchell.mcpkg.daemon;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.System.Logger.Level;
+import java.net.URISyntaxException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import dev.benmitchell.mcpkg.Checksums;
+import dev.benmitchell.mcpkg.MCPKGLogger;
+import dev.benmitchell.mcpkg.Main;
+import dev.benmitchell.mcpkg.Platform;
+import dev.benmitchell.mcpkg.cli.CommandLine;
+import dev.benmitchell.mcpkg.sources.LocalSource;
+import dev.benmitchell.mcpkg.sources.RemoteSource;
+
+/**
+ * Runs commands for {@link DaemonClient}s, keeping the catalog, its indexes and the installed packs
+ * loaded in between. The daemon listens on a loopback port, which it records along with a random
+ * token in a file in the mcpkg data directory that only its user can read. Clients send the token
+ * before anything else, so other users on the machine can't run commands as this one. The file
+ * also records which build of mcpkg and which config the daemon started with, so that clients
+ * don't hand commands to a daemon that's out of date.
+ * 
+ * Commands are run one at a time, as they share the working directory, the standard streams and
+ * the sources. Each command's output is sent back to its client in frames, followed by its exit
+ * status
+ */
+public class Daemon {
+    // Frames sent to clients, each a type byte followed by its contents
+    static final int FRAME_ACCEPTED = 0;
+    static final int FRAME_STDOUT = 1;
+    static final int FRAME_STDERR = 2;
+    static final int FRAME_EXIT = 3;
+
+    // How long a client has to send its command once it's connected
+    private static final int HANDSHAKE_TIMEOUT = 5 * 1000;
+    private static final int TOKEN_BYTES = 32;
+
+    private boolean stopping = false;
+
+    /**
+     * @return The file recording the running daemon's port and token
+     */
+    static Path getInfoFile() {
+        return Platform.getConfig().dataPath.resolve("daemon.properties");
+    }
+
+    private static String getModified(Path path) {
+        try {
+            return Long.toString(Files.getLastModifiedTime(path).toMillis());
+        } catch (IOException ex) {
+            return "none";
+        }
+    }
+
+    /**
+     * @return A stamp of the mcpkg build and config file this process runs with, made from their
+     *         versions and modification times. A daemon started before either changed has a
+     *         different stamp to its clients
+     */
+    static String getStamp() {
+        String build = "unknown";
+        CodeSource codeSource = Daemon.class.getProtectionDomain().getCodeSource();
+        if (codeSource != null) {
+            try {
+                build = getModified(Paths.get(codeSource.getLocation().toURI()));
+            } catch (URISyntaxException | RuntimeException ex) {
+                // Left unknown, which still changes with the version
+            }
+        }
+        return Daemon.class.getPackage().getImplementationVersion() + "/" + build + "/"
+                + getModified(Platform.getConfigFile());
+    }
+
+    /**
+     * Writes the info file through a temporary file, which is only readable by its owner
+     */
+    private static void writeInfoFile(int port, String token) throws IOException {
+        Properties info = new Properties();
+        info.setProperty("port", Integer.toString(port));
+        info.setProperty("token", token);
+        info.setProperty("pid", Long.toString(ProcessHandle.current().pid()));
+        info.setProperty("stamp", getStamp());
+
+        Path infoFile = getInfoFile();
+        Path tmpFile = Files.createTempFile(infoFile.getParent(), "daemon", ".tmp");
+        try (Writer writer = Files.newBufferedWriter(tmpFile)) {
+            info.store(writer, "mcpkg daemon");
+        }
+        Files.move(tmpFile, infoFile, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Sends everything written to it to a client as frames of the given type
+     */
+    private static class FrameOutputStream extends OutputStream {
+        private final DataOutputStream out;
+        private final int type;
+
+        FrameOutputStream(DataOutputStream out, int type) {
+            this.out = out;
+            this.type = type;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            synchronized (out) {
+                out.writeByte(type);
+                out.writeInt(len);
+                out.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (out) {
+                out.flush();
+            }
+        }
+    }
+
+    /**
+     * Loads everything that commands would otherwise load for themselves, and starts watching the
+     * installed packs for changes
+     */
+    private static void warmUp() {
+        try {
+            MCPKGLogger.log(Level.INFO, "Loading the catalog...");
+            RemoteSource remoteSource = CommandLine.getRemoteSource();
+            remoteSource.getPacks();
+            remoteSource.getResolver();
+            remoteSource.searchForPacks(List.of());
+        } catch (IOException ex) {
+            // Left for the first command that needs it
+            MCPKGLogger.log(Level.WARNING, "Couldn't load the catalog: " + ex.getMessage());
+        }
+
+        try {
+            LocalSource allWorldsSource = CommandLine.getLocalSource(true);
+            allWorldsSource.watch();
+            allWorldsSource.getPacks();
+        } catch (IOException ex) {
+            MCPKGLogger.log(Level.WARNING, "Couldn't load the installed packs: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Runs the daemon until it's stopped
+     * 
+     * @return The exit status
+     */
+    public int serve() throws IOException {
+        byte[] tokenBytes = new byte[TOKEN_BYTES];
+        new SecureRandom().nextBytes(tokenBytes);
+        String token = Checksums.toHex(tokenBytes);
+
+        try (ServerSocket serverSocket =
+                new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            writeInfoFile(serverSocket.getLocalPort(), token);
+            Thread removeInfoFile = new Thread(() -> {
+                try {
+                    Files.deleteIfExists(getInfoFile());
+                } catch (IOException ex) {
+                    // Clients fall back to running commands themselves anyway
+                }
+            });
+            Runtime.getRuntime().addShutdownHook(removeInfoFile);
+
+            warmUp();
+            MCPKGLogger.log(Level.INFO, "Listening on port " + serverSocket.getLocalPort()
+                    + ", stop with 'daemon stop'");
+            while (!stopping) {
+                try (Socket socket = serverSocket.accept()) {
+                    handle(socket, token);
+                } catch (IOException ex) {
+                    MCPKGLogger.log(Level.WARNING, "Lost a client: " + ex.getMessage());
+                }
+            }
+
+            Runtime.getRuntime().removeShutdownHook(removeInfoFile);
+            removeInfoFile.run();
+        } finally {
+            CommandLine.getLocalSource(true).close();
+        }
+        return 0;
+    }
+
+    /**
+     * Reads a client's command and runs it, with the client as its standard streams
+     */
+    private void handle(Socket socket, String token) throws IOException {
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+        DataInputStream in =
+                new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out =
+                new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+        if (!MessageDigest.isEqual(in.readUTF().getBytes(StandardCharsets.UTF_8),
+                token.getBytes(StandardCharsets.UTF_8))) {
+            MCPKGLogger.log(Level.WARNING, "Rejected a client with the wrong token");
+            return;
+        }
+        Path workingDir = Paths.get(in.readUTF());
+        int consoleWidth = in.readInt();
+        int argCount = in.readInt();
+        List<String> args = new ArrayList<String>(argCount);
+        for (int i = 0; i < argCount; i++)
+            args.add(in.readUTF());
+        socket.setSoTimeout(0);
+        out.writeByte(FRAME_ACCEPTED);
+        out.flush();
+
+        PrintStream stdout =
+                new PrintStream(new BufferedOutputStream(new FrameOutputStream(out, FRAME_STDOUT)),
+                        true);
+        PrintStream stderr =
+                new PrintStream(new BufferedOutputStream(new FrameOutputStream(out, FRAME_STDERR)),
+                        true);
+        // Whatever the client sends after its command is its standard input, which commands
+        // mustn't close as that would close the socket
+        InputStream stdin = new FilterInputStream(in) {
+            @Override
+            public void close() {
+            }
+        };
+
+        PrintStream oldOut = System.out;
+        PrintStream oldErr = System.err;
+        InputStream oldIn = System.in;
+        Path oldWorkingDir = Platform.getWorkingDir();
+        int status;
+        System.setOut(stdout);
+        System.setErr(stderr);
+        System.setIn(stdin);
+        Platform.setWorkingDir(workingDir);
+        CommandLine.setConsoleWidth(consoleWidth);
+        try {
+            status = runCommand(args);
+        } catch (RuntimeException ex) {
+            // Kept from taking the daemon down with it
+            MCPKGLogger.log(Level.ERROR, ex.toString());
+            status = 1;
+        } finally {
+            stdout.flush();
+            stderr.flush();
+            System.setOut(oldOut);
+            System.setErr(oldErr);
+            System.setIn(oldIn);
+            Platform.setWorkingDir(oldWorkingDir);
+            CommandLine.setConsoleWidth(-1);
+        }
+
+        synchronized (out) {
+            out.writeByte(FRAME_EXIT);
+            out.writeInt(status);
+            out.flush();
+        }
+    }
+
+    /**
+     * Runs a command, apart from the daemon commands, which apply to this daemon
+     */
+    private int runCommand(List<String> args) {
+        if (args.isEmpty() || !args.get(0).equals("daemon"))
+            return Main.run(args.toArray(new String[0]));
+
+        if (args.size() > 1 && args.get(1).equals("stop")) {
+            MCPKGLogger.log(Level.INFO, "Stopping the daemon");
+            stopping = true;
+            return 0;
+        }
+        MCPKGLogger.log(Level.ERROR, "A daemon is already running");
+        return 1;
+    }
+}
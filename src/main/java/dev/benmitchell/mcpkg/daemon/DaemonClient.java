@@ -0,0 +1,150 @@
+package dev.benmitchell.mcpkg.daemon;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.lang.System.Logger.Level;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.jline.terminal.TerminalBuilder;
+
+import dev.benmitchell.mcpkg.MCPKGLogger;
+import dev.benmitchell.mcpkg.Main;
+import dev.benmitchell.mcpkg.Platform;
+import dev.benmitchell.mcpkg.cli.ArgParser;
+import dev.benmitchell.mcpkg.exceptions.InvalidFlagException;
+
+/**
+ * Hands commands to a running {@link Daemon}, and relays its output
+ */
+public class DaemonClient {
+    // A daemon on the same machine answers straight away if it's there at all
+    private static final int CONNECT_TIMEOUT = 250;
+
+    /**
+     * @return The width of the terminal the client is running in, or 0 if it isn't in one
+     */
+    private static int getConsoleWidth() throws IOException {
+        // Only looked up for interactive use, as starting a terminal takes a while
+        return System.console() == null ? 0 : TerminalBuilder.terminal().getWidth();
+    }
+
+    /**
+     * @return The subcommand and its arguments, or an empty list if the arguments only ask for the
+     *         usage or are invalid. Either is quicker to answer here than to find the daemon, which
+     *         means reading the config
+     */
+    private static List<String> getSubcommands(String[] args) {
+        ArgParser parser = new ArgParser(Main.getDefaultFlags());
+        Map<String, Object> flags;
+        try {
+            flags = parser.getEnabledFlags(Arrays.asList(args));
+        } catch (InvalidFlagException | IndexOutOfBoundsException ex) {
+            return List.of();
+        }
+        return (Boolean) flags.get("help") ? List.of() : parser.getFlaglessArgs();
+    }
+
+    /**
+     * Runs a command in the running daemon, if there is one. Set MCPKG_NO_DAEMON to always run
+     * commands in their own process. A daemon started with another build of mcpkg or before the
+     * config last changed only runs daemon commands, so that it can still be stopped
+     * 
+     * @param args The command line arguments
+     * @return The command's exit status, or null if there's no daemon to run it
+     */
+    public static Integer forward(String[] args) {
+        if (System.getenv("MCPKG_NO_DAEMON") != null)
+            return null;
+        List<String> subcommands = getSubcommands(args);
+        if (subcommands.isEmpty())
+            return null;
+        Path infoFile = Daemon.getInfoFile();
+        if (!Files.exists(infoFile))
+            return null;
+
+        Socket socket = new Socket();
+        DataInputStream in;
+        try {
+            Properties info = new Properties();
+            try (Reader reader = Files.newBufferedReader(infoFile)) {
+                info.load(reader);
+            }
+            if (!Daemon.getStamp().equals(info.getProperty("stamp"))
+                    && !subcommands.get(0).equals("daemon")) {
+                MCPKGLogger.log(Level.WARNING, "The daemon is running an older mcpkg or config,"
+                        + " so the command is run here. Restart it with 'daemon stop' to use it"
+                        + " again");
+                return null;
+            }
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                    Integer.parseInt(info.getProperty("port"))), CONNECT_TIMEOUT);
+
+            DataOutputStream out =
+                    new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeUTF(info.getProperty("token"));
+            out.writeUTF(Platform.getWorkingDir().toString());
+            out.writeInt(getConsoleWidth());
+            out.writeInt(args.length);
+            for (String arg : args)
+                out.writeUTF(arg);
+            out.flush();
+
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            if (in.read() != Daemon.FRAME_ACCEPTED)
+                throw new IOException("The daemon refused the command");
+        } catch (IOException | RuntimeException ex) {
+            // The daemon has gone away without removing its file, or was never started by us
+            MCPKGLogger.log(Level.DEBUG,
+                    "Couldn't reach the daemon, running the command here: " + ex.getMessage());
+            try {
+                socket.close();
+            } catch (IOException closeEx) {
+                // Nothing more to do with it
+            }
+            return null;
+        }
+
+        // The command is running now, so it mustn't be run here too even if the daemon fails
+        try (socket) {
+            Thread stdinForwarder = new Thread(() -> {
+                try {
+                    OutputStream socketOut = socket.getOutputStream();
+                    System.in.transferTo(socketOut);
+                    socket.shutdownOutput();
+                } catch (IOException ex) {
+                    // The command has finished
+                }
+            }, "mcpkg-stdin");
+            stdinForwarder.setDaemon(true);
+            stdinForwarder.start();
+
+            while (true) {
+                int type = in.readUnsignedByte();
+                if (type == Daemon.FRAME_EXIT)
+                    return in.readInt();
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                PrintStream stream = type == Daemon.FRAME_STDERR ? System.err : System.out;
+                stream.write(data);
+                stream.flush();
+            }
+        } catch (IOException ex) {
+            MCPKGLogger.log(Level.ERROR, "Lost the connection to the daemon: " + ex.getMessage());
+            return 1;
+        }
+    }
+}
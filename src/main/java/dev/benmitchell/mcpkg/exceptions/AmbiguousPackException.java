@@ -0,0 +1,13 @@
+package dev.benmitchell.mcpkg.exceptions;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import dev.benmitchell.mcpkg.packs.Pack;
+
+public class AmbiguousPackException extends PackNotFoundException {
+    public AmbiguousPackException(String packId, List<Pack> candidates) {
+        super(packId, "The pack '" + packId + "' is ambiguous. Use one of: " + candidates.stream()
+                .map(Pack::getPackId).collect(Collectors.joining(", ")));
+    }
+}
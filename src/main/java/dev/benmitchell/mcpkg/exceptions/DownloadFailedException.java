@@ -0,0 +1,30 @@
+package dev.benmitchell.mcpkg.exceptions;
+
+import java.util.Map;
+
+import dev.benmitchell.mcpkg.packs.Pack;
+
+public class DownloadFailedException extends MCPKGException {
+    private final Map<Pack, Throwable> failures;
+
+    private static String buildMessage(Map<Pack, Throwable> failures) {
+        StringBuilder builder = new StringBuilder();
+        builder.append(failures.size()).append(" pack(s) failed to download:");
+        for (var failure : failures.entrySet())
+            builder.append("\n    ").append(failure.getKey()).append(": ")
+                    .append(failure.getValue().getMessage());
+        return builder.toString();
+    }
+
+    public DownloadFailedException(Map<Pack, Throwable> failures) {
+        super(buildMessage(failures));
+        this.failures = failures;
+    }
+
+    /**
+     * @return The packs that failed to download, mapped to the reason they failed
+     */
+    public Map<Pack, Throwable> getFailures() {
+        return failures;
+    }
+}
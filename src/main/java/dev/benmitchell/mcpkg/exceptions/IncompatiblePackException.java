@@ -6,7 +6,7 @@ import dev.benmitchell.mcpkg.packs.Pack;
 
 public class IncompatiblePackException extends MCPKGException {
     public IncompatiblePackException(List<String> packIds, Pack pack) {
-        super("The packs " + String.join(", ", packIds) + "are incompatible with "
+        super("The packs " + String.join(", ", packIds) + " are incompatible with "
                 + pack.getPackId());
     }
 }
@@ -1,7 +1,48 @@
 package dev.benmitchell.mcpkg.exceptions;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
 public class PackNotFoundException extends MCPKGException {
+    private final String packId;
+    private final List<String> suggestions;
+
     public PackNotFoundException(String packId) {
-        super("The pack '" + packId + "' could not be found");
+        this(packId, new ArrayList<String>());
+    }
+
+    /**
+     * @param suggestions The IDs of packs with similar names, closest first
+     */
+    public PackNotFoundException(String packId, List<String> suggestions) {
+        this(packId, "The pack '" + packId + "' could not be found" + (suggestions.isEmpty() ? ""
+                : " (did you mean " + suggestions.stream().map(id -> "'" + id + "'")
+                        .collect(Collectors.joining(", ")) + "?)"),
+                suggestions);
+    }
+
+    protected PackNotFoundException(String packId, String msg) {
+        this(packId, msg, new ArrayList<String>());
+    }
+
+    private PackNotFoundException(String packId, String msg, List<String> suggestions) {
+        super(msg);
+        this.packId = packId;
+        this.suggestions = suggestions;
+    }
+
+    /**
+     * @return The ID that couldn't be found
+     */
+    public String getPackId() {
+        return packId;
+    }
+
+    /**
+     * @return The IDs of packs with names similar to the one that couldn't be found
+     */
+    public List<String> getSuggestions() {
+        return suggestions;
     }
 }
@@ -0,0 +1,104 @@
+package dev.benmitchell.mcpkg.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicNameValuePair;
+
+import dev.benmitchell.mcpkg.Platform;
+
+/**
+ * HTTP/1.1 transport built on a pooling Apache HttpClient. Responses are transparently
+ * decompressed when the server gzips them
+ */
+public class ApacheHttpTransport implements HttpTransport {
+    // How long to keep an idle connection open if the server doesn't say
+    private static final long DEFAULT_KEEP_ALIVE_MILLIS = 30 * 1000;
+
+    private final CloseableHttpClient httpClient;
+
+    public ApacheHttpTransport(Platform.Config config) {
+        PoolingHttpClientConnectionManager connectionManager =
+                new PoolingHttpClientConnectionManager();
+        connectionManager.setDefaultMaxPerRoute(config.maxConnectionsPerHost);
+        connectionManager.setMaxTotal(config.maxConnectionsPerHost * 4);
+        connectionManager.setValidateAfterInactivity(2000);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(config.connectTimeout)
+                .setConnectionRequestTimeout(config.connectTimeout)
+                .setSocketTimeout(config.readTimeout).build();
+
+        ConnectionKeepAliveStrategy keepAliveStrategy = (response, context) -> {
+            long keepAlive =
+                    DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response,
+                            context);
+            return keepAlive > 0 ? keepAlive : DEFAULT_KEEP_ALIVE_MILLIS;
+        };
+
+        httpClient = HttpClients.custom().setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig).setKeepAliveStrategy(keepAliveStrategy)
+                .evictIdleConnections(DEFAULT_KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS)
+                .setUserAgent("mcpkg").build();
+    }
+
+    @Override
+    public String post(URI uri, Map<String, String> form) throws IOException {
+        HttpPost httpPost = new HttpPost(uri);
+
+        List<NameValuePair> nvpList = new ArrayList<NameValuePair>(form.size());
+        for (var entryPair : form.entrySet()) {
+            nvpList.add(new BasicNameValuePair(entryPair.getKey(), entryPair.getValue()));
+        }
+        httpPost.setEntity(new UrlEncodedFormEntity(nvpList, "UTF-8"));
+
+        try (CloseableHttpResponse response = httpClient.execute(httpPost)) {
+            HttpEntity entity = response.getEntity();
+
+            if (entity != null)
+                try (InputStream iStream = entity.getContent()) {
+                    return IOUtils.toString(iStream, StandardCharsets.UTF_8.name());
+                }
+        }
+
+        throw new RuntimeException("entity was null");
+    }
+
+    @Override
+    public TransportResponse get(URI uri, Map<String, String> headers) throws IOException {
+        HttpGet httpGet = new HttpGet(uri);
+        for (var header : headers.entrySet())
+            httpGet.setHeader(header.getKey(), header.getValue());
+
+        CloseableHttpResponse response = httpClient.execute(httpGet);
+        Map<String, String> responseHeaders = new HashMap<String, String>();
+        for (Header header : response.getAllHeaders())
+            responseHeaders.putIfAbsent(header.getName().toLowerCase(), header.getValue());
+
+        HttpEntity entity = response.getEntity();
+        InputStream body = entity != null ? entity.getContent() : InputStream.nullInputStream();
+        return new TransportResponse(response.getStatusLine().getStatusCode(), responseHeaders,
+                body, response);
+    }
+}
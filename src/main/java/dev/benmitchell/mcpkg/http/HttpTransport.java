@@ -0,0 +1,36 @@
+package dev.benmitchell.mcpkg.http;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Map;
+
+import dev.benmitchell.mcpkg.Platform;
+
+/**
+ * A shared, connection-pooling HTTP client. Every request mcpkg makes goes through one of these so
+ * that repeated requests to the same host reuse their connections
+ */
+public interface HttpTransport {
+    /**
+     * Creates the transport described by the config
+     */
+    static HttpTransport fromConfig(Platform.Config config) {
+        if (config.http2)
+            return new JavaHttpTransport(config);
+        return new ApacheHttpTransport(config);
+    }
+
+    /**
+     * Posts a url-encoded form
+     * 
+     * @return The body of the response
+     */
+    String post(URI uri, Map<String, String> form) throws IOException;
+
+    /**
+     * Sends a GET request. The response must be closed once the body has been read
+     * 
+     * @param headers Extra request headers
+     */
+    TransportResponse get(URI uri, Map<String, String> headers) throws IOException;
+}
@@ -0,0 +1,87 @@
+package dev.benmitchell.mcpkg.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.zip.GZIPInputStream;
+
+import dev.benmitchell.mcpkg.Platform;
+
+/**
+ * Transport built on {@link java.net.http.HttpClient}, which negotiates HTTP/2 with servers that
+ * support it so that concurrent requests share a single connection. The JDK client has no
+ * per-read timeout, so {@code readTimeout} bounds the time until the response headers arrive
+ */
+public class JavaHttpTransport implements HttpTransport {
+    private final HttpClient httpClient;
+    private final Duration readTimeout;
+
+    public JavaHttpTransport(Platform.Config config) {
+        httpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2)
+                .connectTimeout(Duration.ofMillis(config.connectTimeout))
+                .followRedirects(HttpClient.Redirect.NORMAL).build();
+        readTimeout = Duration.ofMillis(config.readTimeout);
+    }
+
+    private <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> handler)
+            throws IOException {
+        try {
+            return httpClient.send(request, handler);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while requesting " + request.uri());
+        }
+    }
+
+    @Override
+    public String post(URI uri, Map<String, String> form) throws IOException {
+        StringJoiner body = new StringJoiner("&");
+        for (var entryPair : form.entrySet())
+            body.add(URLEncoder.encode(entryPair.getKey(), StandardCharsets.UTF_8) + "="
+                    + URLEncoder.encode(entryPair.getValue(), StandardCharsets.UTF_8));
+
+        HttpRequest request = HttpRequest.newBuilder(uri).timeout(readTimeout)
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .header("User-Agent", "mcpkg")
+                .POST(HttpRequest.BodyPublishers.ofString(body.toString())).build();
+        return send(request, HttpResponse.BodyHandlers.ofString()).body();
+    }
+
+    @Override
+    public TransportResponse get(URI uri, Map<String, String> headers) throws IOException {
+        HttpRequest.Builder builder =
+                HttpRequest.newBuilder(uri).timeout(readTimeout).header("User-Agent", "mcpkg");
+        boolean acceptEncodingSet = false;
+        for (var header : headers.entrySet()) {
+            builder.header(header.getKey(), header.getValue());
+            acceptEncodingSet |= header.getKey().equalsIgnoreCase("Accept-Encoding");
+        }
+        // The JDK client doesn't negotiate compression by itself
+        if (!acceptEncodingSet)
+            builder.header("Accept-Encoding", "gzip");
+
+        HttpResponse<InputStream> response =
+                send(builder.build(), HttpResponse.BodyHandlers.ofInputStream());
+        Map<String, String> responseHeaders = new HashMap<String, String>();
+        for (Map.Entry<String, List<String>> header : response.headers().map().entrySet())
+            if (!header.getValue().isEmpty())
+                responseHeaders.put(header.getKey().toLowerCase(), header.getValue().get(0));
+
+        InputStream body = response.body();
+        if ("gzip".equalsIgnoreCase(responseHeaders.get("content-encoding")))
+            body = new GZIPInputStream(body);
+        return new TransportResponse(response.statusCode(), responseHeaders, body,
+                response.body());
+    }
+}
@@ -0,0 +1,58 @@
+package dev.benmitchell.mcpkg.http;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * The status, headers and body of a response from an {@link HttpTransport}
+ */
+public class TransportResponse implements Closeable {
+    private final int status;
+    private final Map<String, String> headers;
+    private final InputStream body;
+    private final Closeable resource;
+
+    /**
+     * @param headers The response headers, keyed by their lower case names
+     * @param resource Released when the response is closed
+     */
+    public TransportResponse(int status, Map<String, String> headers, InputStream body,
+            Closeable resource) {
+        this.status = status;
+        this.headers = headers;
+        this.body = body;
+        this.resource = resource;
+    }
+
+    /**
+     * @return The HTTP status code
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * @return The value of the header, or null if it wasn't sent
+     */
+    public String getHeader(String name) {
+        return headers.get(name.toLowerCase());
+    }
+
+    /**
+     * @return The (decompressed) response body
+     */
+    public InputStream getBody() {
+        return body;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            body.close();
+        } finally {
+            resource.close();
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package dev.benmitchell.mcpkg.manifest;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.System.Logger.Level;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.apache.commons.io.FilenameUtils;
+
+import dev.benmitchell.mcpkg.Checksums;
+import dev.benmitchell.mcpkg.MCPKGLogger;
+import dev.benmitchell.mcpkg.Platform;
+import dev.benmitchell.mcpkg.packs.LocalPack;
+import dev.benmitchell.mcpkg.packs.Pack;
+import dev.benmitchell.mcpkg.packs.Pack.Version;
+
+/**
+ * A record of the packs installed in one directory (a world's datapacks directory or the resource
+ * packs directory), stored in the mcpkg data directory. The record is trusted for as long as the
+ * directory's modification time matches the one it was last reconciled against, so unchanged
+ * directories are never listed or have their packs reopened
+ */
+public class InstallManifest {
+    public static class Entry {
+        public String fileName;
+        public String packId;
+        public String version;
+        public String source;
+        public String sha256;
+        public long size;
+        public long lastModified;
+        public long installed;
+        public String description;
+        public int packFormat;
+    }
+
+    public static class Contents {
+        public int formatVersion;
+        public String directory;
+        public long directoryModified = -1;
+        public List<Entry> entries = new ArrayList<Entry>();
+    }
+
+    private static final Map<Path, InstallManifest> instances =
+            new HashMap<Path, InstallManifest>();
+
+    /**
+     * @return The manifest of the given directory
+     */
+    public static synchronized InstallManifest forDirectory(Path directory) {
+        Path normalised = directory.toAbsolutePath().normalize();
+        return instances.computeIfAbsent(normalised, dir -> new InstallManifest(dir,
+                Platform.getConfig().dataPath.resolve("manifests").resolve(getFileName(dir))));
+    }
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    // Entries written by an older format are missing fields, so their files are read again
+    private static final int FORMAT_VERSION = 1;
+
+    private final Path directory;
+    private final Path manifestFile;
+    private Contents contents = null;
+    private Map<String, Entry> entriesByFileName;
+
+    public InstallManifest(Path directory, Path manifestFile) {
+        this.directory = directory;
+        this.manifestFile = manifestFile;
+    }
+
+    /**
+     * @return A name for the manifest file that's unique to the directory
+     */
+    private static String getFileName(Path directory) {
+        byte[] hash =
+                Checksums.newDigest().digest(directory.toString().getBytes(StandardCharsets.UTF_8));
+        return Checksums.toHex(hash).substring(0, 16) + ".json";
+    }
+
+    /**
+     * @return The modification time of the file in nanoseconds, or -1 if it doesn't exist
+     */
+    private static long getModified(Path file) throws IOException {
+        if (!Files.exists(file))
+            return -1;
+        return Files.getLastModifiedTime(file).to(TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return The name of the source a pack ID belongs to ("VanillaTweaks" for
+     *         "VanillaTweaks.afk display")
+     */
+    private static String getSource(String packId) {
+        int index = packId.lastIndexOf('.');
+        return index < 0 ? "" : packId.substring(0, index);
+    }
+
+    private static String getVersionString(Version version) {
+        // An unknown version is stored as null, as 0.0.0 is written as an empty string
+        return version.equals(new Version()) ? null : version.toString();
+    }
+
+    /**
+     * @param sha256 The hash of the file if it's already known, or null to hash it
+     */
+    private Entry createEntry(Pack pack, Path file, String sha256) throws IOException {
+        // The pack was either just read from the file, or is about to be
+        LocalPack localPack =
+                pack instanceof LocalPack ? (LocalPack) pack : LocalPack.fromFile(file.toFile());
+
+        Entry entry = new Entry();
+        entry.fileName = file.getFileName().toString();
+        entry.packId = pack.getPackId();
+        entry.version = getVersionString(pack.getVersion());
+        entry.source = getSource(pack.getPackId());
+        entry.sha256 = sha256 != null ? sha256 : Checksums.sha256(file);
+        entry.size = Files.size(file);
+        entry.lastModified = getModified(file);
+        entry.installed = System.currentTimeMillis();
+        // Prefer the source's description over the one in the pack
+        entry.description = pack.getDescription() == null || pack.getDescription().isEmpty()
+                ? localPack.getDescription()
+                : pack.getDescription();
+        entry.packFormat = localPack.getPackFormat();
+        return entry;
+    }
+
+    private void load() throws IOException {
+        if (contents != null)
+            return;
+
+        contents = new Contents();
+        if (Files.exists(manifestFile)) {
+            try {
+                contents = MAPPER.readValue(manifestFile.toFile(), Contents.class);
+            } catch (IOException ex) {
+                MCPKGLogger.log(Level.WARNING, "The install manifest for '" + directory
+                        + "' is unreadable, rebuilding it");
+            }
+        }
+        entriesByFileName = new HashMap<String, Entry>();
+        if (contents.formatVersion != FORMAT_VERSION) {
+            contents.directoryModified = -1;
+            return;
+        }
+        for (Entry entry : contents.entries)
+            entriesByFileName.put(entry.fileName, entry);
+    }
+
+    private void save() throws IOException {
+        Files.createDirectories(manifestFile.getParent());
+        contents.formatVersion = FORMAT_VERSION;
+        contents.directory = directory.toString();
+        Path tmpFile = Files.createTempFile(manifestFile.getParent(),
+                manifestFile.getFileName().toString(), ".tmp");
+        MAPPER.writeValue(tmpFile.toFile(), contents);
+        Files.move(tmpFile, manifestFile, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Brings the manifest in line with the pack files in the directory. Entries whose file is
+     * unchanged in size and modification time are kept as they are, and only new or changed
+     * files are opened
+     */
+    private void reconcile() throws IOException {
+        // Sorted so that packs are listed by file name
+        Map<String, Entry> reconciled = new TreeMap<String, Entry>();
+        long directoryModified = getModified(directory);
+        if (directoryModified >= 0) {
+            try (var files = Files.list(directory)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    // Ignore any non .zip files
+                    if (!FilenameUtils.getExtension(file.getFileName().toString()).equals("zip"))
+                        continue;
+                    String fileName = file.getFileName().toString();
+                    Entry entry = entriesByFileName.get(fileName);
+                    if (entry == null || entry.size != Files.size(file)
+                            || entry.lastModified != getModified(file)) {
+                        MCPKGLogger.log(Level.DEBUG, "Adding '" + file + "' to its manifest");
+                        entry = createEntry(LocalPack.fromFile(file.toFile()), file, null);
+                    }
+                    reconciled.put(fileName, entry);
+                }
+            }
+        }
+
+        contents.entries = new ArrayList<Entry>(reconciled.values());
+        contents.directoryModified = directoryModified;
+        entriesByFileName = reconciled;
+        save();
+    }
+
+    /**
+     * @return The packs installed in the directory, reconciled with the directory first if it's
+     *         changed since the manifest was last written
+     */
+    public synchronized List<Entry> getEntries() throws IOException {
+        load();
+        if (contents.directoryModified != getModified(directory))
+            reconcile();
+        return new ArrayList<Entry>(contents.entries);
+    }
+
+    /**
+     * @return A description of what's wrong with an installed file, or null if it's as recorded
+     */
+    private static String checkFile(Path file, Entry entry) throws IOException {
+        if (!Files.exists(file))
+            return "is missing";
+        long size = Files.size(file);
+        if (size != entry.size)
+            return "is " + size + " bytes, but was installed at " + entry.size + " bytes";
+        if (entry.sha256 != null && !Checksums.sha256Mapped(file).equals(entry.sha256))
+            return "doesn't match the SHA-256 hash it was installed with";
+        return null;
+    }
+
+    /**
+     * Checks each recorded pack file against the size and hash it was installed with. The
+     * recorded entries are used as they are, without reconciling them with their directories
+     * first, as that would record any damaged file as it is now. Files are hashed in parallel
+     * through memory mappings
+     * 
+     * @param directories The directories whose manifests to check
+     * @return Every file checked, mapped to a description of what's wrong with it, or to null if
+     *         nothing is
+     */
+    public static Map<Path, String> verify(List<Path> directories) throws IOException {
+        Map<Path, Entry> files = new TreeMap<Path, Entry>();
+        for (Path directory : directories) {
+            InstallManifest manifest = forDirectory(directory);
+            synchronized (manifest) {
+                manifest.load();
+                for (Entry entry : manifest.entriesByFileName.values())
+                    files.put(manifest.directory.resolve(entry.fileName), entry);
+            }
+        }
+
+        Map<Path, String> results = new TreeMap<Path, String>();
+        if (files.isEmpty())
+            return results;
+        int threadCount = Math.min(files.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            Map<Path, Future<String>> checks = new LinkedHashMap<Path, Future<String>>();
+            for (var file : files.entrySet())
+                checks.put(file.getKey(),
+                        executor.submit(() -> checkFile(file.getKey(), file.getValue())));
+            for (var check : checks.entrySet()) {
+                try {
+                    results.put(check.getKey(), check.getValue().get());
+                } catch (ExecutionException ex) {
+                    results.put(check.getKey(), "couldn't be read: " + ex.getCause().getMessage());
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while verifying installed packs");
+        } finally {
+            executor.shutdownNow();
+        }
+        return results;
+    }
+
+    /**
+     * Records a pack that's just been installed to the given file in the directory
+     * 
+     * @param sha256 The hash of the file, or null if it isn't known
+     */
+    public synchronized void recordInstall(Pack pack, Path file, String sha256)
+            throws IOException {
+        load();
+        Entry entry = createEntry(pack, file, sha256);
+        entriesByFileName.put(entry.fileName, entry);
+        // Picks up anything else that changed in the directory at the same time
+        reconcile();
+    }
+
+    /**
+     * Records that the given file has been removed from the directory
+     */
+    public synchronized void recordUninstall(Path file) throws IOException {
+        load();
+        entriesByFileName.remove(file.getFileName().toString());
+        reconcile();
+    }
+}
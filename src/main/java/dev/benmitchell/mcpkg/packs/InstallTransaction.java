@@ -0,0 +1,452 @@
+package dev.benmitchell.mcpkg.packs;
+
+import java.io.IOException;
+import java.lang.System.Logger.Level;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import dev.benmitchell.mcpkg.Checksums;
+import dev.benmitchell.mcpkg.MCPKGLogger;
+import dev.benmitchell.mcpkg.Platform;
+import dev.benmitchell.mcpkg.exceptions.PackNotDownloadedException;
+import dev.benmitchell.mcpkg.manifest.InstallManifest;
+import dev.benmitchell.mcpkg.store.PackStore;
+
+/**
+ * Installs and removes a set of packs all at once. Packs are first staged in a directory next to
+ * where they'll be installed, so that they're on the same filesystem, and are only renamed into
+ * place once everything has been staged. Anything a commit replaces or removes is moved aside
+ * rather than deleted until the commit is complete.
+ * 
+ * A journal in the mcpkg data directory records each transaction, so that one interrupted part way
+ * through can be finished (or undone, if its staged files are gone) by {@link #recover()}. Each
+ * journal has a lock file that's held for as long as the transaction is in progress, so that no
+ * process recovers a transaction another process is still working on
+ */
+public class InstallTransaction {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final String STAGING_DIR_NAME = ".mcpkg-staging";
+    private static final String BACKUP_DIR_NAME = "replaced";
+
+    public static class Operation {
+        public static final String INSTALL = "install";
+        public static final String REMOVE = "remove";
+
+        public String type;
+        // The file to install, for installs
+        public String staged;
+        public String target;
+        // Where the file previously at the target is moved to
+        public String backup;
+        // The hash of the file in the pack store, for installs
+        public String sha256;
+    }
+
+    public static class Journal {
+        public String id;
+        public boolean committing = false;
+        public List<String> stagingDirs = new ArrayList<String>();
+        public List<Operation> operations = new ArrayList<Operation>();
+    }
+
+    // The lock files this process has open. A second channel mustn't be opened to any of them, as
+    // closing it would release the lock held through the first
+    private static final Set<Path> heldLockFiles = ConcurrentHashMap.newKeySet();
+
+    private final Journal journal = new Journal();
+    private final Path journalFile;
+    // Held from when the journal is first written until it's deleted
+    private FileLock journalLock = null;
+    private final Map<Path, Pack> installedPacks = new HashMap<Path, Pack>();
+    private final Map<Path, Pack> removedPacks = new HashMap<Path, Pack>();
+    private final Map<Path, String> installedHashes = new HashMap<Path, String>();
+
+    public InstallTransaction() {
+        journal.id = UUID.randomUUID().toString();
+        journalFile = getJournalDir().resolve(journal.id + ".json");
+    }
+
+    private static Path getJournalDir() {
+        return Platform.getConfig().dataPath.resolve("journal");
+    }
+
+    private static Path getLockFile(Path journalFile) {
+        String fileName = journalFile.getFileName().toString();
+        return journalFile.resolveSibling(
+                fileName.substring(0, fileName.length() - ".json".length()) + ".lock");
+    }
+
+    /**
+     * Locks the lock file of the given journal
+     * 
+     * @return The lock, or null if a transaction in progress, in this process or another, holds it
+     */
+    private static FileLock lockJournal(Path journalFile) throws IOException {
+        Path lockFile = getLockFile(journalFile).toAbsolutePath();
+        if (!heldLockFiles.add(lockFile))
+            return null;
+        FileChannel channel = null;
+        FileLock lock = null;
+        try {
+            Files.createDirectories(journalFile.getParent());
+            channel = FileChannel.open(lockFile, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE);
+            lock = channel.tryLock();
+            return lock;
+        } finally {
+            if (lock == null) {
+                // This process holds no lock on it, so closing the channel releases nothing
+                if (channel != null)
+                    channel.close();
+                heldLockFiles.remove(lockFile);
+            }
+        }
+    }
+
+    /**
+     * Releases a journal's lock once the journal is gone, and deletes the lock file
+     */
+    private static void unlockJournal(Path journalFile, FileLock lock) throws IOException {
+        Path lockFile = getLockFile(journalFile).toAbsolutePath();
+        try {
+            lock.channel().close();
+            Files.deleteIfExists(lockFile);
+        } finally {
+            heldLockFiles.remove(lockFile);
+        }
+    }
+
+    /**
+     * Writes this transaction's journal, locking it first if it's the first write
+     */
+    private void saveJournal() throws IOException {
+        if (journalLock == null)
+            journalLock = lockJournal(journalFile);
+        writeJournal(journalFile, journal);
+    }
+
+    /**
+     * Deletes this transaction's journal, now that there's nothing left to recover
+     */
+    private void deleteJournal() throws IOException {
+        Files.deleteIfExists(journalFile);
+        if (journalLock != null) {
+            unlockJournal(journalFile, journalLock);
+            journalLock = null;
+        }
+    }
+
+    private static void writeJournal(Path journalFile, Journal journal) throws IOException {
+        Files.createDirectories(journalFile.getParent());
+        Path tmpFile = Files.createTempFile(journalFile.getParent(),
+                journalFile.getFileName().toString(), ".tmp");
+        MAPPER.writeValue(tmpFile.toFile(), journal);
+        Files.move(tmpFile, journalFile, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static Path path(String path) {
+        return path == null ? null : Paths.get(path);
+    }
+
+    /**
+     * @return The directory that packs being installed to the destination are staged in
+     */
+    private Path getStagingDir(Path destination) throws IOException {
+        Path stagingDir = destination.toAbsolutePath().resolveSibling(STAGING_DIR_NAME)
+                .resolve(journal.id);
+        if (!journal.stagingDirs.contains(stagingDir.toString())) {
+            // Recorded before anything is staged, so that it can be cleaned up after a crash
+            journal.stagingDirs.add(stagingDir.toString());
+            saveJournal();
+            Files.createDirectories(stagingDir.resolve(BACKUP_DIR_NAME));
+        }
+        return stagingDir;
+    }
+
+    private Operation addOperation(String type, Path staged, Path target) throws IOException {
+        Operation operation = new Operation();
+        operation.type = type;
+        operation.staged = staged == null ? null : staged.toString();
+        operation.target = target.toString();
+        operation.backup = getStagingDir(target.getParent()).resolve(BACKUP_DIR_NAME)
+                .resolve(target.getFileName()).toString();
+        journal.operations.add(operation);
+        return operation;
+    }
+
+    /**
+     * Stages a downloaded pack to be installed to the given directory when the transaction is
+     * committed
+     */
+    public synchronized void stageInstall(Pack pack, Path destination)
+            throws IOException, PackNotDownloadedException {
+        MCPKGLogger.log(Level.INFO, "Installing '" + pack + "' to '" + destination + "'...");
+        Map<Path, String> stagedFiles = pack.stage(getStagingDir(destination));
+        Path packFile = null;
+        for (Map.Entry<Path, String> staged : stagedFiles.entrySet()) {
+            Path stagedFile = staged.getKey();
+            if (packFile == null)
+                packFile = stagedFile;
+            Operation operation = addOperation(Operation.INSTALL, stagedFile,
+                    destination.toAbsolutePath().resolve(stagedFile.getFileName()));
+            // Files are usually hashed as they're downloaded or extracted, so aren't read again
+            operation.sha256 =
+                    staged.getValue() != null ? staged.getValue() : Checksums.sha256(stagedFile);
+            if (Platform.getConfig().packStore)
+                PackStore.getInstance().add(journal.id, stagedFile, operation.sha256);
+            installedHashes.put(path(operation.target), operation.sha256);
+        }
+        installedPacks.put(destination.toAbsolutePath().resolve(packFile.getFileName()), pack);
+    }
+
+    /**
+     * Stages an installed pack to be removed when the transaction is committed
+     */
+    public synchronized void stageUninstall(Pack pack)
+            throws IOException, PackNotDownloadedException {
+        Path target = pack.getDownloadedData().toPath().toAbsolutePath();
+        addOperation(Operation.REMOVE, null, target);
+        removedPacks.put(target, pack);
+    }
+
+    /**
+     * Moves a file, replacing the destination
+     */
+    private static void rename(Path source, Path destination) throws IOException {
+        Files.move(source, destination, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Carries out the operations that haven't been yet. Each step can be seen to be done from the
+     * filesystem, so this is safe to repeat
+     */
+    private static void rollForward(Journal journal) throws IOException {
+        Set<String> installTargets = new HashSet<String>();
+        for (Operation operation : journal.operations)
+            if (operation.type.equals(Operation.INSTALL))
+                installTargets.add(operation.target);
+
+        for (Operation operation : journal.operations) {
+            Path target = path(operation.target);
+            Path backup = path(operation.backup);
+            if (operation.type.equals(Operation.REMOVE)) {
+                // Reinstalling a pack replaces it rather than removing it
+                if (!installTargets.contains(operation.target) && Files.exists(target))
+                    rename(target, backup);
+                continue;
+            }
+
+            Path staged = path(operation.staged);
+            if (!Files.exists(staged))
+                continue;
+            if (Files.exists(target) && !Files.exists(backup))
+                rename(target, backup);
+            rename(staged, target);
+        }
+    }
+
+    /**
+     * Undoes the operations that have been carried out, putting back everything that was moved
+     * aside
+     */
+    private static void rollBack(Journal journal) throws IOException {
+        // An install that's been renamed into place has no staged file left
+        for (Operation operation : journal.operations)
+            if (operation.type.equals(Operation.INSTALL) && !Files.exists(path(operation.staged)))
+                Files.deleteIfExists(path(operation.target));
+        // Only once every new file is gone, as a removal can share its target with an install
+        for (Operation operation : journal.operations)
+            if (Files.exists(path(operation.backup)))
+                rename(path(operation.backup), path(operation.target));
+    }
+
+    private static void deleteStagingDirs(Journal journal) throws IOException {
+        for (String stagingDir : journal.stagingDirs) {
+            Path dir = path(stagingDir);
+            if (!Files.exists(dir))
+                continue;
+            try (var files = Files.walk(dir)) {
+                List<Path> paths = new ArrayList<Path>();
+                files.forEach(paths::add);
+                paths.sort(Comparator.reverseOrder());
+                for (Path path : paths)
+                    Files.delete(path);
+            }
+            // Remove the shared staging directory too, once no other transaction is using it
+            try {
+                Files.deleteIfExists(dir.getParent());
+            } catch (IOException ex) {
+                // Still in use
+            }
+        }
+    }
+
+    /**
+     * Updates the pack store's references to match the operations, once they've been carried out
+     */
+    private static void updateStoreReferences(Journal journal) throws IOException {
+        Map<Path, String> added = new HashMap<Path, String>();
+        Set<Path> removed = new HashSet<Path>();
+        for (Operation operation : journal.operations) {
+            if (operation.type.equals(Operation.REMOVE))
+                removed.add(path(operation.target));
+            else if (operation.sha256 != null && Platform.getConfig().packStore)
+                added.put(path(operation.target), operation.sha256);
+        }
+        if (!added.isEmpty() || !removed.isEmpty())
+            PackStore.getInstance().updateReferences(journal.id, added, removed);
+    }
+
+    /**
+     * Releases the pack store's lease on the files the transaction added to it, when none of them
+     * will be installed
+     */
+    private static void releaseStoreLease(Journal journal) throws IOException {
+        for (Operation operation : journal.operations)
+            if (operation.sha256 != null && Platform.getConfig().packStore) {
+                PackStore.getInstance().releaseLease(journal.id);
+                return;
+            }
+    }
+
+    /**
+     * @return true if every staged file is either still staged or already installed
+     */
+    private static boolean canRollForward(Journal journal) {
+        for (Operation operation : journal.operations)
+            if (operation.type.equals(Operation.INSTALL) && !Files.exists(path(operation.staged))
+                    && !Files.exists(path(operation.target)))
+                return false;
+        return true;
+    }
+
+    /**
+     * Renames every staged pack into place and removes every pack staged for removal, then
+     * updates the install manifests
+     */
+    public synchronized void commit() throws IOException {
+        if (journal.operations.isEmpty()) {
+            rollback();
+            return;
+        }
+
+        journal.committing = true;
+        saveJournal();
+        try {
+            rollForward(journal);
+        } catch (IOException ex) {
+            MCPKGLogger.log(Level.ERROR, "Couldn't install the packs, undoing: " + ex.getMessage());
+            rollBack(journal);
+            releaseStoreLease(journal);
+            deleteStagingDirs(journal);
+            deleteJournal();
+            throw ex;
+        }
+        updateStoreReferences(journal);
+
+        for (var removed : removedPacks.entrySet()) {
+            if (installedPacks.containsKey(removed.getKey()))
+                continue;
+            removed.getValue().downloadedData = Optional.empty();
+            removed.getValue().installed = false;
+            InstallManifest.forDirectory(removed.getKey().getParent())
+                    .recordUninstall(removed.getKey());
+        }
+        for (var installed : installedPacks.entrySet()) {
+            String sha256 = installedHashes.get(installed.getKey());
+            installed.getValue().setDownloadedData(installed.getKey().toFile(), sha256);
+            installed.getValue().installed = true;
+            InstallManifest.forDirectory(installed.getKey().getParent())
+                    .recordInstall(installed.getValue(), installed.getKey(), sha256);
+        }
+
+        deleteStagingDirs(journal);
+        deleteJournal();
+    }
+
+    /**
+     * Discards everything staged, leaving the installed packs untouched
+     */
+    public synchronized void rollback() throws IOException {
+        releaseStoreLease(journal);
+        deleteStagingDirs(journal);
+        deleteJournal();
+    }
+
+    /**
+     * Finishes or undoes any transactions that were interrupted. Transactions that were still
+     * staging are discarded. Ones that had started committing are finished if all of their staged
+     * files are still around, and undone otherwise. Transactions whose journal is locked are still
+     * in progress, in this process or another, and are left alone
+     */
+    public static void recover() throws IOException {
+        Path journalDir = getJournalDir();
+        if (!Files.isDirectory(journalDir))
+            return;
+
+        try (var journalFiles = Files.list(journalDir)) {
+            for (Path journalFile : (Iterable<Path>) journalFiles::iterator) {
+                if (!journalFile.getFileName().toString().endsWith(".json"))
+                    continue;
+                FileLock lock = lockJournal(journalFile);
+                if (lock == null)
+                    continue;
+                try {
+                    recover(journalFile);
+                } finally {
+                    unlockJournal(journalFile, lock);
+                }
+            }
+        }
+    }
+
+    /**
+     * Recovers the transaction of a journal that's been locked
+     */
+    private static void recover(Path journalFile) throws IOException {
+        // Another process may have recovered it between listing and locking
+        if (!Files.exists(journalFile))
+            return;
+        Journal journal;
+        try {
+            journal = MAPPER.readValue(journalFile.toFile(), Journal.class);
+        } catch (IOException ex) {
+            MCPKGLogger.log(Level.WARNING, "Ignoring the unreadable install journal '"
+                    + journalFile + "': " + ex.getMessage());
+            return;
+        }
+
+        if (journal.committing && canRollForward(journal)) {
+            MCPKGLogger.log(Level.WARNING, "Finishing an interrupted install");
+            rollForward(journal);
+            updateStoreReferences(journal);
+        } else {
+            if (journal.committing) {
+                MCPKGLogger.log(Level.WARNING, "Undoing an interrupted install");
+                rollBack(journal);
+            }
+            releaseStoreLease(journal);
+        }
+        deleteStagingDirs(journal);
+        Files.delete(journalFile);
+    }
+}
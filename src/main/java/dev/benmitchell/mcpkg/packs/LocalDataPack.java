@@ -1,11 +1,10 @@
 package dev.benmitchell.mcpkg.packs;
 
 import java.io.File;
-import java.io.IOException;
+import java.nio.file.Path;
 
 import dev.benmitchell.mcpkg.Platform;
 import dev.benmitchell.mcpkg.exceptions.InvalidDirectoryException;
-import dev.benmitchell.mcpkg.exceptions.PackNotDownloadedException;
 
 /**
  * Represents a locally stored data pack
@@ -16,8 +15,7 @@ public class LocalDataPack extends LocalPack {
     }
 
     @Override
-    public void install()
-            throws IOException, InvalidDirectoryException, PackNotDownloadedException {
-        installTo(Platform.getDataPacksDir());
+    public Path getInstallDir() throws InvalidDirectoryException {
+        return Platform.getDataPacksDir();
     }
 }
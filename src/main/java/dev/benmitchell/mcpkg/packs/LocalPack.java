@@ -1,40 +1,99 @@
 package dev.benmitchell.mcpkg.packs;
 
 import java.io.File;
+import java.io.IOException;
+import java.lang.System.Logger.Level;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.apache.commons.lang3.NotImplementedException;
 
+import dev.benmitchell.mcpkg.MCPKGLogger;
 import dev.benmitchell.mcpkg.Platform;
+import dev.benmitchell.mcpkg.manifest.InstallManifest;
 
 public abstract class LocalPack extends Pack {
+    // "<id>[.<major>.<minor>.<revision>].zip", where the ID may itself contain dots. Version parts
+    // are capped at 9 digits so they always fit in an int; longer ones are left in the ID
+    private static final Pattern FILE_NAME_PATTERN = Pattern.compile(
+            "(.+?)(?:\\.(\\d{1,9})\\.(\\d{1,9})\\.(\\d{1,9}))?\\.zip",
+            Pattern.CASE_INSENSITIVE);
+
+    protected int packFormat = 0;
+
     /**
-     * Creates a new pack object based on a given file
+     * Creates a new pack object based on a given file. The ID and version come from the file
+     * name, and the description and pack format from the pack.mcmeta inside it
      * 
      * @param file The file that the pack is based on
-     * @param packType The type of pack
      * @return A LocalPack that's either a DataPack or a ResourcePack
      */
     public static LocalPack fromFile(File file) {
-        String[] details = file.getName().split("\\.");
-        Version version;
-        if (details.length == 6)
+        Matcher matcher = FILE_NAME_PATTERN.matcher(file.getName());
+        String packId;
+        Version version = new Version();
+        if (matcher.matches()) {
+            packId = matcher.group(1);
             // If version is in the pack name
-            version = new Version(Integer.parseInt(details[2]), Integer.parseInt(details[3]),
-                    Integer.parseInt(details[4]));
-        else
-            version = new Version();
+            if (matcher.group(2) != null)
+                version = new Version(Integer.parseInt(matcher.group(2)),
+                        Integer.parseInt(matcher.group(3)), Integer.parseInt(matcher.group(4)));
+        } else {
+            packId = file.getName();
+        }
+
+        LocalPack pack = create(packId, version, file);
+        try {
+            PackMetadata metadata = PackMetadata.read(file);
+            if (metadata != null) {
+                pack.description = metadata.getDescription();
+                pack.packFormat = metadata.getPackFormat();
+            }
+        } catch (IOException ex) {
+            MCPKGLogger.log(Level.WARNING,
+                    "Couldn't read the metadata of '" + file + "': " + ex.getMessage());
+        }
+        return pack;
+    }
+
+    /**
+     * Creates a new pack object from its entry in the manifest of the directory it's installed in
+     * 
+     * @param entry The manifest entry describing the pack
+     * @param directory The directory the pack is installed in
+     * @return A LocalPack that's either a DataPack or a ResourcePack
+     */
+    public static LocalPack fromManifest(InstallManifest.Entry entry, Path directory) {
+        LocalPack pack = create(entry.packId, new Version(entry.version),
+                directory.resolve(entry.fileName).toFile());
+        if (entry.description != null)
+            pack.description = entry.description;
+        pack.packFormat = entry.packFormat;
+        return pack;
+    }
+
+    private static LocalPack create(String packId, Version version, File file) {
         if (Platform.isADataPacksDir(file.getParentFile().toPath()))
-            return new LocalDataPack(details[0] + "." + details[1], version, file);
+            return new LocalDataPack(packId, version, file);
         if (Platform.getResourcePacksDir().equals(file.getParentFile().toPath()))
-            return new LocalResourcePack(details[0] + "." + details[1], version, file);
+            return new LocalResourcePack(packId, version, file);
 
         throw new NotImplementedException("Couldn't determine the type of pack '" + file + "'");
     }
 
     public LocalPack(String packId, Version version, File downloadedData, PackType packType) {
-        super(packId, packId.split("\\.")[1], "", version, new ArrayList<String>(),
-                new ArrayList<String>(), packType, Optional.of(downloadedData));
+        super(packId, packId.substring(packId.lastIndexOf('.') + 1), "", version,
+                new ArrayList<String>(), new ArrayList<String>(), packType,
+                Optional.of(downloadedData));
+    }
+
+    /**
+     * @return The pack format from the pack's pack.mcmeta, or 0 if it's unknown
+     */
+    public int getPackFormat() {
+        return packFormat;
     }
 }
@@ -1,11 +1,9 @@
 package dev.benmitchell.mcpkg.packs;
 
 import java.io.File;
-import java.io.IOException;
+import java.nio.file.Path;
 
 import dev.benmitchell.mcpkg.Platform;
-import dev.benmitchell.mcpkg.exceptions.InvalidDirectoryException;
-import dev.benmitchell.mcpkg.exceptions.PackNotDownloadedException;
 
 public class LocalResourcePack extends LocalPack {
     public LocalResourcePack(String packId, Version version, File downloadedData) {
@@ -13,8 +11,7 @@ public class LocalResourcePack extends LocalPack {
     }
 
     @Override
-    public void install()
-            throws IOException, InvalidDirectoryException, PackNotDownloadedException {
-        installTo(Platform.getResourcePacksDir());
+    public Path getInstallDir() {
+        return Platform.getResourcePacksDir();
     }
 }
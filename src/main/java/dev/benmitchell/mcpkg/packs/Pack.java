@@ -6,7 +6,9 @@ import java.lang.System.Logger.Level;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 import dev.benmitchell.mcpkg.MCPKGLogger;
@@ -92,6 +94,7 @@ public abstract class Pack {
     protected List<String> incompatible;
     protected PackType packType;
     protected Optional<File> downloadedData;
+    protected String downloadedHash = null;
     protected boolean installed;
 
     public Pack(String packId, String displayName, String description, Version version,
@@ -129,6 +132,13 @@ public abstract class Pack {
         return description;
     }
 
+    /**
+     * @return The category the source files the pack under, or an empty string if it has none
+     */
+    public String getCategory() {
+        return "";
+    }
+
     /**
      * @return The version of the pack
      */
@@ -184,26 +194,70 @@ public abstract class Pack {
      * Sets the pack to downloaded, with the data being stored in the location at downloadedData
      */
     public void setDownloadedData(File downloadedData) {
+        setDownloadedData(downloadedData, null);
+    }
+
+    /**
+     * Sets the pack to downloaded, with the data being stored in the location at downloadedData
+     * 
+     * @param sha256 The SHA-256 hash of the data, if it was worked out as the data was written
+     */
+    public void setDownloadedData(File downloadedData, String sha256) {
         this.downloadedData = Optional.of(downloadedData);
+        this.downloadedHash = sha256;
+    }
+
+    /**
+     * @return The SHA-256 hash of the downloaded data, or null if it isn't known
+     */
+    public String getDownloadedHash() {
+        return downloadedHash;
+    }
+
+    /**
+     * Moves the pack's downloaded data into a transaction's staging directory, under the names it
+     * will be installed as
+     * 
+     * @return The staged files in order, the first of which is the pack itself, mapped to their
+     *         SHA-256 hashes, or to null where the hash isn't known
+     */
+    protected Map<Path, String> stage(Path stagingDir)
+            throws IOException, PackNotDownloadedException {
+        Path stagedFile = stagingDir.resolve(toString() + ".zip");
+        setDownloadedData(Files
+                .move(getDownloadedData().toPath(), stagedFile, StandardCopyOption.REPLACE_EXISTING)
+                .toFile(), downloadedHash);
+        Map<Path, String> stagedFiles = new LinkedHashMap<Path, String>();
+        stagedFiles.put(stagedFile, downloadedHash);
+        return stagedFiles;
     }
 
     /**
      * Installs the pack to a given destination
      */
     public void installTo(Path destination) throws IOException, PackNotDownloadedException {
-        MCPKGLogger.log(Level.INFO, "Installing '" + this + "' to '" + destination + "'...");
-        Path destFile = destination.resolve(toString() + ".zip");
-        setDownloadedData(Files
-                .move(getDownloadedData().toPath(), destFile, StandardCopyOption.REPLACE_EXISTING)
-                .toFile());
-        installed = true;
+        InstallTransaction transaction = new InstallTransaction();
+        try {
+            transaction.stageInstall(this, destination);
+        } catch (IOException | PackNotDownloadedException | RuntimeException ex) {
+            transaction.rollback();
+            throw ex;
+        }
+        transaction.commit();
     }
 
+    /**
+     * @return The directory the pack is installed to
+     */
+    public abstract Path getInstallDir() throws InvalidDirectoryException;
+
     /**
      * Installs the pack to a set destination
      */
-    public abstract void install()
-            throws IOException, InvalidDirectoryException, PackNotDownloadedException;
+    public void install()
+            throws IOException, InvalidDirectoryException, PackNotDownloadedException {
+        installTo(getInstallDir());
+    }
 
     /**
      * Removes the pack from its installed location
@@ -212,9 +266,14 @@ public abstract class Pack {
      */
     public void uninstall() throws IOException, PackNotDownloadedException {
         MCPKGLogger.log(Level.INFO, "Uninstalling '" + this + "'...");
-        Files.delete(getDownloadedData().toPath());
-        downloadedData = Optional.empty();
-        installed = false;
+        InstallTransaction transaction = new InstallTransaction();
+        try {
+            transaction.stageUninstall(this);
+        } catch (IOException | PackNotDownloadedException | RuntimeException ex) {
+            transaction.rollback();
+            throw ex;
+        }
+        transaction.commit();
     }
 
     @Override
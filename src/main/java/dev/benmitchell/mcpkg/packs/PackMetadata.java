@@ -0,0 +1,84 @@
+package dev.benmitchell.mcpkg.packs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * The contents of a pack's pack.mcmeta file
+ */
+public class PackMetadata {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final String FILE_NAME = "pack.mcmeta";
+
+    private final int packFormat;
+    private final String description;
+
+    public PackMetadata(int packFormat, String description) {
+        this.packFormat = packFormat;
+        this.description = description;
+    }
+
+    /**
+     * Flattens a text component (a string, an object with a "text" field and optional "extra"
+     * components, or an array of components) into plain text
+     */
+    private static String getText(JsonNode component) {
+        if (component == null || component.isNull())
+            return "";
+        if (component.isValueNode())
+            return component.asText();
+
+        StringBuilder builder = new StringBuilder();
+        if (component.isArray()) {
+            for (JsonNode child : component)
+                builder.append(getText(child));
+        } else {
+            builder.append(component.path("text").asText());
+            for (JsonNode child : component.path("extra"))
+                builder.append(getText(child));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Reads the pack.mcmeta at the root of a pack zip. Only the zip's central directory and the
+     * pack.mcmeta entry are read, so the size of the rest of the pack doesn't matter
+     * 
+     * @return The metadata, or null if the zip has no pack.mcmeta
+     * @throws IOException If the file isn't a valid zip or its pack.mcmeta isn't valid JSON
+     */
+    public static PackMetadata read(File file) throws IOException {
+        try (ZipFile zipFile = new ZipFile(file)) {
+            ZipEntry entry = zipFile.getEntry(FILE_NAME);
+            if (entry == null)
+                return null;
+
+            JsonNode pack;
+            try (InputStream iStream = zipFile.getInputStream(entry)) {
+                pack = MAPPER.readTree(iStream).path("pack");
+            }
+            return new PackMetadata(pack.path("pack_format").asInt(0),
+                    getText(pack.get("description")));
+        }
+    }
+
+    /**
+     * @return The pack format number, or 0 if it isn't given
+     */
+    public int getPackFormat() {
+        return packFormat;
+    }
+
+    /**
+     * @return The pack's description as plain text
+     */
+    public String getDescription() {
+        return description;
+    }
+}
@@ -0,0 +1,280 @@
+package dev.benmitchell.mcpkg.packs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+
+import dev.benmitchell.mcpkg.Checksums;
+
+/**
+ * Reads a zip file through its central directory, giving access to the raw data of each entry.
+ * Entries are copied or inflated straight to their destination through fixed buffers, and hashed
+ * on the way so that the extracted files never need to be read again. Nothing is ever
+ * recompressed
+ */
+public class ZipCentralDirectory implements Closeable {
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int ENTRY_SIGNATURE = 0x02014b50;
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int END_SIZE = 22;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+    private static final int UTF8_FLAG = 1 << 11;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    public static class Entry {
+        private final String name;
+        private final int method;
+        private final long crc;
+        private final long compressedSize;
+        private final long size;
+        private final long localHeaderOffset;
+
+        Entry(String name, int method, long crc, long compressedSize, long size,
+                long localHeaderOffset) {
+            this.name = name;
+            this.method = method;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}
+         */
+        public int getMethod() {
+            return method;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public boolean isDirectory() {
+            return name.endsWith("/");
+        }
+    }
+
+    private final Path file;
+    private final FileChannel channel;
+    private final List<Entry> entries;
+
+    private ZipCentralDirectory(Path file, FileChannel channel, List<Entry> entries) {
+        this.file = file;
+        this.channel = channel;
+        this.entries = entries;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining())
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new IOException("Unexpected end of zip file");
+        return buffer.flip();
+    }
+
+    /**
+     * Opens a zip file and reads its central directory
+     * 
+     * @throws IOException If the file isn't a zip, or is a zip64 file
+     */
+    public static ZipCentralDirectory open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            return new ZipCentralDirectory(file, channel, readEntries(file, channel));
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    private static List<Entry> readEntries(Path file, FileChannel channel) throws IOException {
+        // The end record sits before a comment of up to 64KiB, so search backwards for it
+        long fileSize = channel.size();
+        int tailSize = (int) Math.min(fileSize, END_SIZE + MAX_COMMENT_SIZE);
+        ByteBuffer tail = read(channel, fileSize - tailSize, tailSize);
+        int end = -1;
+        for (int i = tailSize - END_SIZE; i >= 0; i--)
+            if (tail.getInt(i) == END_SIGNATURE) {
+                end = i;
+                break;
+            }
+        if (end < 0)
+            throw new IOException("'" + file + "' isn't a zip file");
+
+        int entryCount = tail.getShort(end + 10) & 0xffff;
+        long directorySize = tail.getInt(end + 12) & 0xffffffffL;
+        long directoryOffset = tail.getInt(end + 16) & 0xffffffffL;
+        if (entryCount == 0xffff || directoryOffset == 0xffffffffL)
+            throw new IOException("'" + file + "' is a zip64 file, which isn't supported");
+
+        ByteBuffer directory = read(channel, directoryOffset, (int) directorySize);
+        List<Entry> entries = new ArrayList<Entry>(entryCount);
+        for (int i = 0; i < entryCount; i++) {
+            int start = directory.position();
+            if (directory.getInt(start) != ENTRY_SIGNATURE)
+                throw new IOException("'" + file + "' has a corrupt central directory");
+            int flags = directory.getShort(start + 8) & 0xffff;
+            int method = directory.getShort(start + 10) & 0xffff;
+            long crc = directory.getInt(start + 16) & 0xffffffffL;
+            long compressedSize = directory.getInt(start + 20) & 0xffffffffL;
+            long size = directory.getInt(start + 24) & 0xffffffffL;
+            int nameLength = directory.getShort(start + 28) & 0xffff;
+            int extraLength = directory.getShort(start + 30) & 0xffff;
+            int commentLength = directory.getShort(start + 32) & 0xffff;
+            long localHeaderOffset = directory.getInt(start + 42) & 0xffffffffL;
+
+            byte[] nameBytes = new byte[nameLength];
+            directory.position(start + 46);
+            directory.get(nameBytes);
+            // Names that aren't flagged as UTF-8 are nearly always ASCII in practice
+            String name = new String(nameBytes, (flags & UTF8_FLAG) != 0 ? StandardCharsets.UTF_8
+                    : StandardCharsets.ISO_8859_1);
+            directory.position(start + 46 + nameLength + extraLength + commentLength);
+
+            entries.add(new Entry(name, method, crc, compressedSize, size, localHeaderOffset));
+        }
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * @return Every entry in the zip, in central directory order
+     */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return The entry with the given name, or null if there isn't one
+     */
+    public Entry getEntry(String name) {
+        for (Entry entry : entries)
+            if (entry.getName().equals(name))
+                return entry;
+        return null;
+    }
+
+    /**
+     * @return Where the entry's data starts, after its local header
+     */
+    private long getDataOffset(Entry entry) throws IOException {
+        ByteBuffer header = read(channel, entry.localHeaderOffset, LOCAL_HEADER_SIZE);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE)
+            throw new IOException("'" + file + "' has a corrupt entry '" + entry.getName() + "'");
+        // The local name and extra field can differ in length from the central directory's
+        int nameLength = header.getShort(26) & 0xffff;
+        int extraLength = header.getShort(28) & 0xffff;
+        return entry.localHeaderOffset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+    }
+
+    /**
+     * Writes the uncompressed contents of an entry to a file, replacing the file if it exists
+     * 
+     * @return The SHA-256 hash of the extracted file as a hex string
+     * @throws IOException If the entry can't be read or its data doesn't match its checksum
+     */
+    public String extract(Entry entry, Path destination) throws IOException {
+        long dataOffset = getDataOffset(entry);
+        CRC32 crc = new CRC32();
+        MessageDigest digest = Checksums.newDigest();
+        if (entry.getMethod() == ZipEntry.STORED) {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            try (FileChannel out = FileChannel.open(destination, StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                long copied = 0;
+                while (copied < entry.compressedSize) {
+                    buffer.clear()
+                            .limit((int) Math.min(BUFFER_SIZE, entry.compressedSize - copied));
+                    int read = channel.read(buffer, dataOffset + copied);
+                    if (read < 0)
+                        throw new IOException("Unexpected end of zip file");
+                    copied += read;
+                    buffer.flip();
+                    crc.update(buffer.duplicate());
+                    digest.update(buffer.duplicate());
+                    while (buffer.hasRemaining())
+                        out.write(buffer);
+                }
+            }
+            if (crc.getValue() != entry.crc)
+                throw new IOException("'" + entry.getName() + "' in '" + file + "' is corrupt");
+            return Checksums.toHex(digest.digest());
+        }
+        if (entry.getMethod() != ZipEntry.DEFLATED)
+            throw new IOException("'" + entry.getName() + "' in '" + file
+                    + "' uses an unsupported compression method");
+
+        long size = 0;
+        Inflater inflater = new Inflater(true);
+        ByteBuffer input = ByteBuffer.allocate(BUFFER_SIZE);
+        ByteBuffer output = ByteBuffer.allocate(BUFFER_SIZE);
+        long position = dataOffset;
+        long remaining = entry.compressedSize;
+        boolean padded = false;
+        try (FileChannel out = FileChannel.open(destination, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (!inflater.finished()) {
+                if (inflater.needsInput()) {
+                    if (remaining == 0) {
+                        // Raw deflate data may need one byte of padding past its end
+                        if (padded)
+                            throw new IOException("Unexpected end of '" + entry.getName()
+                                    + "' in '" + file + "'");
+                        inflater.setInput(new byte[1]);
+                        padded = true;
+                    } else {
+                        input.clear().limit((int) Math.min(BUFFER_SIZE, remaining));
+                        int read = channel.read(input, position);
+                        if (read < 0)
+                            throw new IOException("Unexpected end of zip file");
+                        position += read;
+                        remaining -= read;
+                        inflater.setInput(input.flip());
+                    }
+                }
+
+                output.clear();
+                try {
+                    size += inflater.inflate(output);
+                } catch (DataFormatException ex) {
+                    throw new IOException("'" + entry.getName() + "' in '" + file
+                            + "' is corrupt: " + ex.getMessage());
+                }
+                output.flip();
+                crc.update(output.duplicate());
+                digest.update(output.duplicate());
+                while (output.hasRemaining())
+                    out.write(output);
+            }
+        } finally {
+            inflater.end();
+        }
+        if (size != entry.getSize() || crc.getValue() != entry.crc)
+            throw new IOException("'" + entry.getName() + "' in '" + file + "' is corrupt");
+        return Checksums.toHex(digest.digest());
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
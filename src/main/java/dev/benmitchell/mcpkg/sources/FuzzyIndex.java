@@ -0,0 +1,209 @@
+package dev.benmitchell.mcpkg.sources;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import dev.benmitchell.mcpkg.packs.Pack;
+
+/**
+ * Typo-tolerant lookup of packs by their short name, display name, or any word in either. Keys are
+ * broken into trigrams, and only keys sharing enough trigrams with the query to possibly be within
+ * the allowed edit distance are compared against it
+ */
+public class FuzzyIndex {
+    private static final char BOUNDARY = '\0';
+
+    private static class Key {
+        final String text;
+        final Pack pack;
+        final int position;
+
+        Key(String text, Pack pack, int position) {
+            this.text = text;
+            this.pack = pack;
+            this.position = position;
+        }
+    }
+
+    private static class Match {
+        final Pack pack;
+        final int distance;
+        final int position;
+
+        Match(Pack pack, int distance, int position) {
+            this.pack = pack;
+            this.distance = distance;
+            this.position = position;
+        }
+    }
+
+    private final List<Key> keys = new ArrayList<Key>();
+    private final Map<String, List<Integer>> postings = new HashMap<String, List<Integer>>();
+
+    public FuzzyIndex(List<Pack> packs) {
+        for (int i = 0; i < packs.size(); i++) {
+            Pack pack = packs.get(i);
+            Set<String> packKeys = new HashSet<String>();
+            packKeys.add(PackIndex.getShortName(pack.getPackId()).toLowerCase());
+            packKeys.add(pack.getDisplayName().toLowerCase());
+            packKeys.addAll(SearchIndex.tokenize(PackIndex.getShortName(pack.getPackId())));
+            packKeys.addAll(SearchIndex.tokenize(pack.getDisplayName()));
+
+            for (String text : packKeys) {
+                int keyId = keys.size();
+                keys.add(new Key(text, pack, i));
+                for (String trigram : getTrigrams(text))
+                    postings.computeIfAbsent(trigram, t -> new ArrayList<Integer>()).add(keyId);
+            }
+        }
+    }
+
+    /**
+     * @return The distinct trigrams of the text, with a boundary character at each end so that
+     *         the first and last letters count as much as the rest
+     */
+    private static Set<String> getTrigrams(String text) {
+        String padded = BOUNDARY + text + BOUNDARY;
+        Set<String> trigrams = new HashSet<String>();
+        for (int i = 0; i + 3 <= padded.length(); i++)
+            trigrams.add(padded.substring(i, i + 3));
+        return trigrams;
+    }
+
+    /**
+     * @return How many edits a query of the given length may be away from a key
+     */
+    private static int getMaxDistance(int length) {
+        if (length <= 4)
+            return 1;
+        if (length <= 8)
+            return 2;
+        return 3;
+    }
+
+    /**
+     * Levenshtein distance between two strings, giving up early once it must exceed the bound
+     * 
+     * @return The distance, or {@code maxDistance + 1} if it's greater than maxDistance
+     */
+    private static int getEditDistance(String a, String b, int maxDistance) {
+        if (Math.abs(a.length() - b.length()) > maxDistance)
+            return maxDistance + 1;
+
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++)
+            previous[j] = j;
+
+        for (int i = 1; i <= a.length(); i++) {
+            current[0] = i;
+            int rowMin = current[0];
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                current[j] = Math.min(Math.min(current[j - 1] + 1, previous[j] + 1),
+                        previous[j - 1] + cost);
+                rowMin = Math.min(rowMin, current[j]);
+            }
+            // Every later row is at least as large as this one's minimum
+            if (rowMin > maxDistance)
+                return maxDistance + 1;
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return Math.min(previous[b.length()], maxDistance + 1);
+    }
+
+    /**
+     * @return The best (smallest) distance from the query to each pack within the allowed
+     *         distance
+     */
+    private Map<Pack, Match> match(String query) {
+        query = query.toLowerCase().trim();
+        Map<Pack, Match> matches = new LinkedHashMap<Pack, Match>();
+        if (query.isEmpty())
+            return matches;
+
+        int maxDistance = getMaxDistance(query.length());
+        Set<String> trigrams = getTrigrams(query);
+        Map<Integer, Integer> sharedCounts = new HashMap<Integer, Integer>();
+        for (String trigram : trigrams)
+            for (int keyId : postings.getOrDefault(trigram, List.of()))
+                sharedCounts.merge(keyId, 1, Integer::sum);
+
+        // Each edit can destroy at most three of the query's trigrams, so keys sharing fewer
+        // than this can't be close enough. Always require one, so short queries aren't compared
+        // against the whole catalog
+        int minShared = Math.max(1, trigrams.size() - 3 * maxDistance);
+        for (var shared : sharedCounts.entrySet()) {
+            if (shared.getValue() < minShared)
+                continue;
+            Key key = keys.get(shared.getKey());
+            int distance = getEditDistance(query, key.text, maxDistance);
+            if (distance > maxDistance)
+                continue;
+            Match best = matches.get(key.pack);
+            if (best == null || distance < best.distance)
+                matches.put(key.pack, new Match(key.pack, distance, key.position));
+        }
+        return matches;
+    }
+
+    private static List<Pack> rank(Iterable<Match> matches, int maxResults) {
+        List<Match> sorted = new ArrayList<Match>();
+        for (Match match : matches)
+            sorted.add(match);
+        sorted.sort(Comparator.comparingInt((Match match) -> match.distance)
+                .thenComparingInt(match -> match.position));
+
+        List<Pack> packs = new ArrayList<Pack>();
+        for (Match match : sorted.subList(0, Math.min(maxResults, sorted.size())))
+            packs.add(match.pack);
+        return packs;
+    }
+
+    /**
+     * Finds the packs closest to a (possibly mistyped) pack name
+     * 
+     * @param query The name to look for
+     * @param maxResults The most packs to return
+     * @return The closest packs, closest first
+     */
+    public List<Pack> find(String query, int maxResults) {
+        return rank(match(query).values(), maxResults);
+    }
+
+    /**
+     * Finds the packs close to any or all of the given keywords
+     * 
+     * @param matchAll If true, packs must be close to every keyword
+     * @return The matching packs, closest first, each appearing once
+     */
+    public List<Pack> search(List<String> keywords, boolean matchAll) {
+        Map<Pack, Match> combined = null;
+        for (String keyword : keywords) {
+            Map<Pack, Match> matches = match(keyword);
+            if (combined == null) {
+                combined = matches;
+                continue;
+            }
+            if (matchAll)
+                combined.keySet().retainAll(matches.keySet());
+            // Rank by total distance when every keyword must match, otherwise by the closest
+            for (Match match : matches.values())
+                if (!matchAll || combined.containsKey(match.pack))
+                    combined.merge(match.pack, match, (a, b) -> new Match(a.pack,
+                            matchAll ? a.distance + b.distance : Math.min(a.distance, b.distance),
+                            a.position));
+        }
+        if (combined == null)
+            return new ArrayList<Pack>();
+        return rank(combined.values(), Integer.MAX_VALUE);
+    }
+}
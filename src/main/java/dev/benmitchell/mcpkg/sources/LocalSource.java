@@ -1,39 +1,308 @@
 package dev.benmitchell.mcpkg.sources;
 
-import java.io.File;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.System.Logger.Level;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import org.apache.commons.io.FilenameUtils;
-
+import dev.benmitchell.mcpkg.MCPKGLogger;
 import dev.benmitchell.mcpkg.Platform;
 import dev.benmitchell.mcpkg.exceptions.InvalidDirectoryException;
+import dev.benmitchell.mcpkg.manifest.InstallManifest;
 import dev.benmitchell.mcpkg.packs.LocalPack;
 import dev.benmitchell.mcpkg.packs.Pack;
 
-public class LocalSource extends PackSource {
-    @Override
-    public List<Pack> getPacks() throws IOException {
-        List<Pack> packs = new ArrayList<Pack>();
-        List<File> files = new ArrayList<File>();
+/**
+ * The packs installed in the current world (or every world) and the resource packs directory.
+ * Packs are read from each directory's {@link InstallManifest}, and a directory is only read again
+ * once it changes, so repeated lookups don't touch the disk. When watching, changes are picked up
+ * from a {@link WatchService} rather than by checking every directory's modification time
+ */
+public class LocalSource extends PackSource implements Closeable {
+    private static class DirectoryState {
+        final FileTime modified;
+        final List<Pack> packs;
+
+        DirectoryState(FileTime modified, List<Pack> packs) {
+            this.modified = modified;
+            this.packs = packs;
+        }
+    }
+
+    private final boolean allWorlds;
+    private final Map<Path, DirectoryState> directories = new HashMap<Path, DirectoryState>();
+    private List<Path> directoryOrder = null;
+    private List<Pack> packs = null;
 
+    private WatchService watchService = null;
+    private final Map<WatchKey, Path> watchedDirectories = new HashMap<WatchKey, Path>();
+    private final Set<Path> changedDirectories = new HashSet<Path>();
+    private boolean worldsChanged = false;
+
+    /**
+     * A source of the packs in the current world and the resource packs directory
+     */
+    public LocalSource() {
+        this(false);
+    }
+
+    /**
+     * @param allWorlds If true, the packs in every world's datapacks directory are included
+     *        instead of only the current world's
+     */
+    public LocalSource(boolean allWorlds) {
+        this.allWorlds = allWorlds;
+    }
+
+    /**
+     * @return The datapacks directory of every world, whether or not it exists yet
+     */
+    private static List<Path> getAllDataPacksDirs() throws IOException {
+        List<Path> dataPacksDirs = new ArrayList<Path>();
+        Path savesDir = Platform.getSavesDir();
+        if (!Files.isDirectory(savesDir))
+            return dataPacksDirs;
+        try (var worlds = Files.list(savesDir)) {
+            for (Path world : (Iterable<Path>) worlds::iterator)
+                if (Files.isDirectory(world))
+                    dataPacksDirs.add(world.resolve("datapacks"));
+        }
+        dataPacksDirs.sort(null);
+        return dataPacksDirs;
+    }
+
+    /**
+     * @return The directories this source reads packs from, whether or not they exist yet
+     */
+    public List<Path> getDirectories() throws IOException {
+        List<Path> directories = new ArrayList<Path>();
         // Get data packs
-        try {
-            files.addAll(Arrays.asList(Platform.getDataPacksDir().toFile().listFiles()));
-        } catch (InvalidDirectoryException ex) {
-            // MCPKGLogger.log(Level.WARNING, ex.getMessage());
+        if (allWorlds) {
+            directories.addAll(getAllDataPacksDirs());
+        } else {
+            try {
+                directories.add(Platform.getDataPacksDir());
+            } catch (InvalidDirectoryException ex) {
+                // MCPKGLogger.log(Level.WARNING, ex.getMessage());
+            }
         }
         // Get resource packs
-        files.addAll(Arrays.asList(Platform.getResourcePacksDir().toFile().listFiles()));
+        directories.add(Platform.getResourcePacksDir());
+        return directories;
+    }
+
+    private static FileTime getModified(Path directory) throws IOException {
+        return Files.exists(directory) ? Files.getLastModifiedTime(directory) : null;
+    }
 
-        for (File file : files) {
-            // Ignore any non .zip files
-            if (!FilenameUtils.getExtension(file.getName()).equals("zip"))
-                continue;
-            packs.add(LocalPack.fromFile(file));
+    private static DirectoryState readDirectory(Path directory) throws IOException {
+        FileTime modified = getModified(directory);
+        List<Pack> packs = new ArrayList<Pack>();
+        for (InstallManifest.Entry entry : InstallManifest.forDirectory(directory).getEntries())
+            packs.add(LocalPack.fromManifest(entry, directory));
+        return new DirectoryState(modified, packs);
+    }
+
+    /**
+     * Reads the given directories concurrently, as each one is a separate manifest (and possibly
+     * a separate directory listing)
+     */
+    private void readDirectories(List<Path> toRead) throws IOException {
+        if (toRead.isEmpty())
+            return;
+        if (toRead.size() == 1) {
+            directories.put(toRead.get(0), readDirectory(toRead.get(0)));
+            return;
+        }
+
+        int threadCount =
+                Math.min(toRead.size(), Runtime.getRuntime().availableProcessors() * 2);
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            List<Callable<DirectoryState>> tasks = new ArrayList<Callable<DirectoryState>>();
+            for (Path directory : toRead)
+                tasks.add(() -> readDirectory(directory));
+            List<Future<DirectoryState>> results = executor.invokeAll(tasks);
+            for (int i = 0; i < toRead.size(); i++)
+                directories.put(toRead.get(i), results.get(i).get());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading installed packs");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException)
+                throw (IOException) ex.getCause();
+            throw new RuntimeException(ex.getCause());
+        } finally {
+            executor.shutdownNow();
         }
+    }
+
+    /**
+     * Drains pending events from the watch service, noting which directories have changed
+     */
+    private void pollWatchService() throws IOException {
+        WatchKey key;
+        while ((key = watchService.poll()) != null) {
+            Path watched = watchedDirectories.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    // Some events were lost, so anything could have changed
+                    changedDirectories.addAll(directories.keySet());
+                    worldsChanged = true;
+                    continue;
+                }
+                Path child = watched.resolve((Path) event.context());
+                if (watched.equals(Platform.getSavesDir())) {
+                    // A world was added or removed
+                    worldsChanged = true;
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                        register(child);
+                        register(child.resolve("datapacks"));
+                    }
+                } else if (watched.getParent().equals(Platform.getSavesDir())) {
+                    // Only a world's datapacks directory being added or removed matters
+                    if (!child.getFileName().toString().equals("datapacks"))
+                        continue;
+                    changedDirectories.add(child);
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE)
+                        register(child);
+                } else {
+                    changedDirectories.add(watched);
+                }
+            }
+            if (!key.reset())
+                watchedDirectories.remove(key);
+        }
+    }
+
+    private void register(Path directory) throws IOException {
+        if (!Files.isDirectory(directory))
+            return;
+        try {
+            watchedDirectories.put(directory.register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY), directory);
+        } catch (IOException ex) {
+            MCPKGLogger.log(Level.WARNING,
+                    "Couldn't watch '" + directory + "' for changes: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Starts watching the pack directories for changes. Meant for long-running processes, where
+     * it saves listing the worlds each time the packs are asked for. Watch events can arrive well
+     * after the change, so the modification time of each pack directory is still checked too
+     */
+    public synchronized void watch() throws IOException {
+        if (watchService != null)
+            return;
+
+        watchService = FileSystems.getDefault().newWatchService();
+        Path savesDir = Platform.getSavesDir();
+        if (allWorlds) {
+            register(savesDir);
+            for (Path dataPacksDir : getAllDataPacksDirs())
+                register(dataPacksDir.getParent());
+        }
+        for (Path directory : getDirectories())
+            register(directory);
+        // Anything read before the watch started may be out of date
+        changedDirectories.addAll(directories.keySet());
+        worldsChanged = true;
+    }
+
+    /**
+     * Stops watching for changes
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (watchService == null)
+            return;
+        watchService.close();
+        watchService = null;
+        watchedDirectories.clear();
+    }
+
+    @Override
+    public synchronized List<Pack> getPacks() throws IOException {
+        List<Path> currentOrder;
+        List<Path> toRead = new ArrayList<Path>();
+        if (watchService != null) {
+            pollWatchService();
+            currentOrder = directoryOrder == null || worldsChanged || !allWorlds
+                    ? getDirectories()
+                    : directoryOrder;
+            for (Path directory : currentOrder) {
+                DirectoryState state = directories.get(directory);
+                // An install that was just made, even by this process, may not have an event yet
+                if (state == null || changedDirectories.contains(directory)
+                        || !Objects.equals(state.modified, getModified(directory)))
+                    toRead.add(directory);
+            }
+            changedDirectories.clear();
+            worldsChanged = false;
+        } else {
+            currentOrder = getDirectories();
+            for (Path directory : currentOrder) {
+                DirectoryState state = directories.get(directory);
+                if (state == null || !Objects.equals(state.modified, getModified(directory)))
+                    toRead.add(directory);
+            }
+        }
+
+        if (packs != null && toRead.isEmpty() && currentOrder.equals(directoryOrder))
+            return packs;
+
+        readDirectories(toRead);
+        directories.keySet().retainAll(currentOrder);
+        List<Pack> newPacks = new ArrayList<Pack>();
+        for (Path directory : currentOrder)
+            newPacks.addAll(directories.get(directory).packs);
+        packs = newPacks;
+        directoryOrder = currentOrder;
         return packs;
     }
+
+    /**
+     * @return The installed data packs of each world, by world name. Worlds without any data
+     *         packs are included with an empty list
+     */
+    public synchronized Map<String, List<Pack>> getPacksByWorld() throws IOException {
+        getPacks();
+        Map<String, List<Pack>> packsByWorld = new LinkedHashMap<String, List<Pack>>();
+        for (Path directory : directoryOrder)
+            if (Platform.isADataPacksDir(directory))
+                packsByWorld.put(directory.getParent().getFileName().toString(),
+                        directories.get(directory).packs);
+        return packsByWorld;
+    }
+
+    /**
+     * @return The installed resource packs
+     */
+    public synchronized List<Pack> getResourcePacks() throws IOException {
+        getPacks();
+        return directories.get(Platform.getResourcePacksDir()).packs;
+    }
 }
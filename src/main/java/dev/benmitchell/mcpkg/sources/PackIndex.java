@@ -0,0 +1,58 @@
+package dev.benmitchell.mcpkg.sources;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import dev.benmitchell.mcpkg.packs.Pack;
+
+/**
+ * Case-insensitive lookup of packs by their full ID ("VanillaTweaks.afk display") or their short
+ * name ("afk display")
+ */
+public class PackIndex {
+    private final Map<String, Pack> packsById;
+    private final Map<String, List<Pack>> packsByShortName;
+
+    /**
+     * @return The last part of a pack ID ("afk display" for "VanillaTweaks.afk display")
+     */
+    public static String getShortName(String packId) {
+        return packId.substring(packId.lastIndexOf('.') + 1);
+    }
+
+    public PackIndex(List<Pack> packs) {
+        packsById = new HashMap<String, Pack>(packs.size() * 2);
+        packsByShortName = new HashMap<String, List<Pack>>(packs.size() * 2);
+        for (Pack pack : packs) {
+            String foldedId = pack.getPackId().toLowerCase();
+            packsById.putIfAbsent(foldedId, pack);
+            packsByShortName
+                    .computeIfAbsent(getShortName(foldedId), name -> new ArrayList<Pack>(1))
+                    .add(pack);
+        }
+    }
+
+    /**
+     * @return The pack with exactly the given full ID (ignoring case), or null if there isn't one
+     */
+    public Pack get(String packId) {
+        return packsById.get(packId.toLowerCase());
+    }
+
+    /**
+     * Finds the packs that an ID refers to. A full ID always refers to exactly one pack, but a
+     * short name can be shared by packs from different sources or categories
+     * 
+     * @return The matching packs. More than one pack means that the ID is ambiguous
+     */
+    public List<Pack> find(String packId) {
+        String foldedId = packId.toLowerCase();
+        Pack pack = packsById.get(foldedId);
+        if (pack != null)
+            return Collections.singletonList(pack);
+        return packsByShortName.getOrDefault(foldedId, Collections.emptyList());
+    }
+}
@@ -0,0 +1,246 @@
+package dev.benmitchell.mcpkg.sources;
+
+import java.lang.System.Logger.Level;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import dev.benmitchell.mcpkg.MCPKGLogger;
+import dev.benmitchell.mcpkg.exceptions.IncompatiblePackException;
+import dev.benmitchell.mcpkg.exceptions.MissingDependencyException;
+import dev.benmitchell.mcpkg.packs.Pack;
+
+/**
+ * Works out everything that has to be installed along with a set of packs, and the order to
+ * install it in. The catalog's dependencies are resolved to pack indices up front, along with a
+ * conflict matrix holding a bitset row per pack of every pack it can't be installed with (in
+ * either direction). Resolving a request is then a walk over the requested packs' dependencies
+ * and a few word-wise ANDs per pack, however much of the catalog is requested
+ */
+public class PackResolver {
+    private final List<Pack> packs;
+    private final PackIndex index;
+    private final Map<Pack, Integer> indices;
+    private final int[][] dependencies;
+    private final List<List<String>> missingDependencies;
+    private final long[][] conflicts;
+
+    public PackResolver(List<Pack> packs) {
+        this.packs = packs;
+        index = new PackIndex(packs);
+        indices = new IdentityHashMap<Pack, Integer>(packs.size() * 2);
+        for (int i = 0; i < packs.size(); i++)
+            indices.put(packs.get(i), i);
+
+        int words = getWordCount();
+        dependencies = new int[packs.size()][];
+        missingDependencies = new ArrayList<List<String>>(packs.size());
+        conflicts = new long[packs.size()][words];
+        for (int i = 0; i < packs.size(); i++) {
+            Pack pack = packs.get(i);
+            List<String> missing = new ArrayList<String>(0);
+            int[] resolved = new int[pack.getDependencies().size()];
+            int resolvedCount = 0;
+            for (String dependency : pack.getDependencies()) {
+                int dependencyIndex = resolveReference(pack, dependency);
+                if (dependencyIndex < 0)
+                    missing.add(dependency);
+                else if (dependencyIndex != i)
+                    resolved[resolvedCount++] = dependencyIndex;
+            }
+            dependencies[i] = resolvedCount == resolved.length ? resolved
+                    : Arrays.copyOf(resolved, resolvedCount);
+            missingDependencies.add(missing);
+
+            // Incompatibility goes both ways, whichever pack declares it
+            for (String incompatible : pack.getIncompatible()) {
+                int incompatibleIndex = resolveReference(pack, incompatible);
+                if (incompatibleIndex < 0 || incompatibleIndex == i)
+                    continue;
+                conflicts[i][incompatibleIndex >>> 6] |= 1L << incompatibleIndex;
+                conflicts[incompatibleIndex][i >>> 6] |= 1L << i;
+            }
+        }
+    }
+
+    private int getWordCount() {
+        return (packs.size() + 63) >>> 6;
+    }
+
+    private static boolean isSet(long[] bits, int index) {
+        return (bits[index >>> 6] & (1L << index)) != 0;
+    }
+
+    private static void set(long[] bits, int index) {
+        bits[index >>> 6] |= 1L << index;
+    }
+
+    /**
+     * Finds the pack that another pack's dependency or incompatibility refers to. Catalogs
+     * usually refer to packs by their short name, which can be shared between pack types, so a
+     * pack of the same type and from the same source is preferred
+     * 
+     * @return The index of the pack, or -1 if there's no such pack
+     */
+    private int resolveReference(Pack from, String reference) {
+        List<Pack> candidates = index.find(reference);
+        if (candidates.isEmpty())
+            return -1;
+        String source = from.getPackId().substring(0, from.getPackId().lastIndexOf('.') + 1);
+        for (Pack candidate : candidates)
+            if (candidate.getPackType() == from.getPackType()
+                    && candidate.getPackId().startsWith(source))
+                return indices.get(candidate);
+        return indices.get(candidates.get(0));
+    }
+
+    /**
+     * @return The index of the pack in the catalog, or -1 if it isn't in the catalog
+     */
+    private int indexOf(Pack pack) {
+        Integer packIndex = indices.get(pack);
+        if (packIndex != null)
+            return packIndex;
+        // Installed packs are separate objects from the catalog's
+        List<Pack> found = index.find(pack.getPackId());
+        return found.size() == 1 ? indices.get(found.get(0)) : -1;
+    }
+
+    /**
+     * @return The packs in the catalog that the pack requires
+     */
+    public List<Pack> getDependencies(Pack pack) {
+        int packIndex = indexOf(pack);
+        if (packIndex < 0)
+            return Collections.emptyList();
+        List<Pack> packDependencies = new ArrayList<Pack>(dependencies[packIndex].length);
+        for (int dependency : dependencies[packIndex])
+            packDependencies.add(packs.get(dependency));
+        return packDependencies;
+    }
+
+    /**
+     * Works out the packs to install for a request: the requested packs and every pack they
+     * depend on, directly or not, that isn't already installed. The packs are split into layers,
+     * where each pack only depends on packs in earlier layers (or installed ones), so every pack
+     * in a layer can be installed at the same time. Packs that depend on each other in a cycle
+     * are put in the same layer
+     * 
+     * @param requested The packs asked for
+     * @param installed The packs already installed
+     * @return The layers of packs to install, in the order to install them
+     * @throws MissingDependencyException If a pack depends on a pack that isn't in the catalog
+     * @throws IncompatiblePackException If a pack to install is incompatible with another pack to
+     *         install, or with an installed pack
+     */
+    public List<List<Pack>> resolve(List<Pack> requested, List<Pack> installed)
+            throws MissingDependencyException, IncompatiblePackException {
+        int words = getWordCount();
+        long[] installedBits = new long[words];
+        for (Pack pack : installed) {
+            int packIndex = indexOf(pack);
+            if (packIndex >= 0)
+                set(installedBits, packIndex);
+        }
+
+        // Take the transitive closure of the requested packs' dependencies
+        long[] selected = new long[words];
+        List<Pack> uncatalogued = new ArrayList<Pack>();
+        Deque<Integer> queue = new ArrayDeque<Integer>();
+        for (Pack pack : requested) {
+            int packIndex = indexOf(pack);
+            if (packIndex < 0)
+                uncatalogued.add(pack);
+            else if (!isSet(selected, packIndex)) {
+                set(selected, packIndex);
+                queue.add(packIndex);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int packIndex = queue.poll();
+            if (!missingDependencies.get(packIndex).isEmpty())
+                throw new MissingDependencyException(missingDependencies.get(packIndex),
+                        packs.get(packIndex));
+            for (int dependency : dependencies[packIndex]) {
+                if (isSet(selected, dependency) || isSet(installedBits, dependency))
+                    continue;
+                MCPKGLogger.log(Level.INFO, "'" + packs.get(packIndex) + "' requires '"
+                        + packs.get(dependency) + "', so it will be installed too");
+                set(selected, dependency);
+                queue.add(dependency);
+            }
+        }
+
+        // Check every selected pack against everything that will be installed afterwards
+        long[] result = new long[words];
+        for (int w = 0; w < words; w++)
+            result[w] = selected[w] | installedBits[w];
+        for (int w = 0; w < words; w++) {
+            for (long bits = selected[w]; bits != 0; bits &= bits - 1) {
+                int packIndex = (w << 6) + Long.numberOfTrailingZeros(bits);
+                List<String> conflicting = new ArrayList<String>(0);
+                for (int v = 0; v < words; v++)
+                    for (long clash = conflicts[packIndex][v] & result[v]; clash != 0;
+                            clash &= clash - 1)
+                        conflicting.add(packs.get((v << 6) + Long.numberOfTrailingZeros(clash))
+                                .getPackId());
+                if (!conflicting.isEmpty())
+                    throw new IncompatiblePackException(conflicting, packs.get(packIndex));
+            }
+        }
+
+        // Peel off the packs whose dependencies are all in earlier layers
+        List<List<Pack>> layers = new ArrayList<List<Pack>>();
+        long[] remaining = selected.clone();
+        boolean anyRemaining = true;
+        while (anyRemaining) {
+            List<Pack> layer = new ArrayList<Pack>();
+            long[] layerBits = new long[words];
+            anyRemaining = false;
+            for (int w = 0; w < words; w++) {
+                for (long bits = remaining[w]; bits != 0; bits &= bits - 1) {
+                    int packIndex = (w << 6) + Long.numberOfTrailingZeros(bits);
+                    boolean ready = true;
+                    for (int dependency : dependencies[packIndex])
+                        if (isSet(remaining, dependency)) {
+                            ready = false;
+                            break;
+                        }
+                    if (ready) {
+                        layer.add(packs.get(packIndex));
+                        set(layerBits, packIndex);
+                    }
+                }
+            }
+
+            if (layer.isEmpty()) {
+                // Everything left depends on something else that's left, so there's a cycle
+                for (int w = 0; w < words; w++)
+                    for (long bits = remaining[w]; bits != 0; bits &= bits - 1)
+                        layer.add(packs.get((w << 6) + Long.numberOfTrailingZeros(bits)));
+                layerBits = remaining;
+            }
+            for (int w = 0; w < words; w++) {
+                remaining[w] &= ~layerBits[w];
+                anyRemaining |= remaining[w] != 0;
+            }
+            layers.add(layer);
+        }
+
+        // Packs from outside the catalog have no known dependencies
+        if (!uncatalogued.isEmpty()) {
+            if (layers.get(0).isEmpty())
+                layers.set(0, uncatalogued);
+            else
+                layers.get(0).addAll(uncatalogued);
+        }
+        if (layers.size() == 1 && layers.get(0).isEmpty())
+            layers.clear();
+        return layers;
+    }
+}
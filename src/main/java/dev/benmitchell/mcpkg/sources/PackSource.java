@@ -6,16 +6,105 @@ import java.util.ArrayList;
 import java.util.List;
 
 import dev.benmitchell.mcpkg.MCPKGLogger;
+import dev.benmitchell.mcpkg.exceptions.AmbiguousPackException;
 import dev.benmitchell.mcpkg.exceptions.PackNotFoundException;
 import dev.benmitchell.mcpkg.packs.Pack;
 
 public abstract class PackSource {
-    public boolean hasPack(String packId) throws IOException {
-        for (Pack pack : getPacks()) {
-            if (pack.getPackId().equals(packId))
-                return true;
+    private List<Pack> indexedPacks = null;
+    private PackIndex index = null;
+    private List<Pack> searchIndexedPacks = null;
+    private final SearchIndex searchIndex = new SearchIndex();
+    private List<Pack> fuzzyIndexedPacks = null;
+    private FuzzyIndex fuzzyIndex = null;
+    private List<Pack> resolvedPacks = null;
+    private PackResolver resolver = null;
+
+    // How many similar packs to suggest when a pack can't be found
+    private static final int MAX_SUGGESTIONS = 3;
+
+    /**
+     * @return An index of the packs returned by {@link #getPacks()}, rebuilt only when that
+     *         returns a different list
+     */
+    protected synchronized PackIndex getIndex() throws IOException {
+        List<Pack> packs = getPacks();
+        if (packs != indexedPacks) {
+            index = new PackIndex(packs);
+            indexedPacks = packs;
+        }
+        return index;
+    }
+
+    /**
+     * @return A search index of the packs returned by {@link #getPacks()}, updated incrementally
+     *         whenever that returns a different list
+     */
+    protected synchronized SearchIndex getSearchIndex() throws IOException {
+        List<Pack> packs = getPacks();
+        if (packs != searchIndexedPacks) {
+            searchIndex.update(packs);
+            searchIndexedPacks = packs;
+        }
+        return searchIndex;
+    }
+
+    /**
+     * @return A typo-tolerant index of the packs returned by {@link #getPacks()}, rebuilt only
+     *         when that returns a different list
+     */
+    protected synchronized FuzzyIndex getFuzzyIndex() throws IOException {
+        List<Pack> packs = getPacks();
+        if (packs != fuzzyIndexedPacks) {
+            fuzzyIndex = new FuzzyIndex(packs);
+            fuzzyIndexedPacks = packs;
+        }
+        return fuzzyIndex;
+    }
+
+    /**
+     * @return A dependency resolver for the packs returned by {@link #getPacks()}, rebuilt only
+     *         when that returns a different list
+     */
+    public synchronized PackResolver getResolver() throws IOException {
+        List<Pack> packs = getPacks();
+        if (packs != resolvedPacks) {
+            resolver = new PackResolver(packs);
+            resolvedPacks = packs;
+        }
+        return resolver;
+    }
+
+    /**
+     * Picks the pack that an ID refers to out of the packs that matched it
+     * 
+     * @throws PackNotFoundException If nothing matched, suggesting packs with similar names
+     * @throws AmbiguousPackException If the ID matched more than one pack
+     */
+    protected Pack selectPack(String packId, List<Pack> matches)
+            throws IOException, PackNotFoundException {
+        if (matches.isEmpty()) {
+            List<String> suggestions = new ArrayList<String>();
+            for (Pack pack : getFuzzyIndex().find(packId, MAX_SUGGESTIONS))
+                suggestions.add(pack.getPackId());
+            throw new PackNotFoundException(packId, suggestions);
         }
-        return false;
+        if (matches.size() > 1)
+            throw new AmbiguousPackException(packId, matches);
+        return matches.get(0);
+    }
+
+    /**
+     * Looks a pack up by its full ID only, unlike {@link #getPack(String)}
+     * 
+     * @return The pack, or null if the source doesn't have it
+     */
+    public Pack getPackById(String packId) throws IOException {
+        return getIndex().get(packId);
+    }
+
+    public boolean hasPack(String packId) throws IOException {
+        return !getIndex().find(packId).isEmpty();
     }
 
     public boolean hasPack(Pack pack) throws IOException {
@@ -42,37 +131,45 @@ public abstract class PackSource {
         return packsToReturn;
     }
 
+    /**
+     * Gets a pack by its full ID or its short name, ignoring case
+     * 
+     * @throws AmbiguousPackException If a short name is shared by more than one pack
+     */
     public Pack getPack(String packId) throws IOException, PackNotFoundException {
-        String packIdLower = packId.toLowerCase();
-        for (Pack pack : getPacks()) {
-            if (pack.getPackId().toLowerCase().equals(packIdLower))
-                return pack;
-
-            String[] split = pack.getPackId().split("\\.");
-            if (split[split.length - 1].toLowerCase().equals(packIdLower))
-                return pack;
-        }
-        throw new PackNotFoundException(packId);
+        return selectPack(packId, getIndex().find(packId));
     }
 
     /**
-     * Searches for packs within the source
+     * Searches for packs within the source, returning packs that match any of the keywords
      * 
-     * @param keywords Keywords / strings of characters that the results could contain
-     * @return The results of the search
+     * @see #searchForPacks(List, boolean)
      */
     public List<Pack> searchForPacks(List<String> keywords) throws IOException {
-        List<Pack> packsToReturn = new ArrayList<Pack>();
+        return searchForPacks(keywords, false);
+    }
 
-        for (Pack pack : getPacks()) {
-            for (String keyword : keywords) {
-                if (pack.getPackId().toLowerCase().contains(keyword.toLowerCase())
-                        || pack.getDisplayName().toLowerCase().contains(keyword.toLowerCase())) {
-                    packsToReturn.add(pack);
-                }
-            }
-        }
+    /**
+     * Searches for packs within the source by their ID, display name, description and category
+     * 
+     * @param keywords Words, or the starts of words, that the results should contain
+     * @param matchAll If true, results must match every keyword rather than any of them
+     * @return The results of the search, best match first
+     */
+    public List<Pack> searchForPacks(List<String> keywords, boolean matchAll)
+            throws IOException {
+        return getSearchIndex().search(keywords, matchAll);
+    }
 
-        return packsToReturn;
+    /**
+     * Searches for packs whose names are close to the keywords, allowing for typos
+     * 
+     * @param keywords Words that may be misspelt
+     * @param matchAll If true, results must be close to every keyword rather than any of them
+     * @return The results of the search, closest first
+     */
+    public List<Pack> fuzzySearchForPacks(List<String> keywords, boolean matchAll)
+            throws IOException {
+        return getFuzzyIndex().search(keywords, matchAll);
     }
 }
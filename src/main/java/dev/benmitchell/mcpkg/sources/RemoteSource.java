@@ -1,21 +1,169 @@
 package dev.benmitchell.mcpkg.sources;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.lang.System.Logger.Level;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import dev.benmitchell.mcpkg.MCPKGLogger;
+import dev.benmitchell.mcpkg.Platform;
+import dev.benmitchell.mcpkg.cache.DownloadCache;
+import dev.benmitchell.mcpkg.exceptions.DownloadFailedException;
+import dev.benmitchell.mcpkg.exceptions.MCPKGException;
 import dev.benmitchell.mcpkg.exceptions.PackNotFoundException;
 import dev.benmitchell.mcpkg.packs.Pack;
+import dev.benmitchell.mcpkg.packs.ZipCentralDirectory;
 
 public abstract class RemoteSource extends PackSource {
+    /**
+     * Called on the calling thread of {@link RemoteSource#downloadPacks(List, DownloadListener)}
+     * as soon as each pack has finished downloading
+     */
+    @FunctionalInterface
+    public interface DownloadListener {
+        void packDownloaded(Pack pack) throws IOException, MCPKGException;
+    }
+
+    /**
+     * Downloads a single pack into the given directory, storing the result in the pack object.
+     * This may be called from multiple threads at once
+     * 
+     * @param pack The pack to download
+     * @param downloadDir The directory to download the pack data into
+     */
+    protected abstract void downloadPack(Pack pack, Path downloadDir) throws IOException;
+
     /**
      * Downloads the given packs to memory, storing the results in the pack objects
      * 
+     * @see #downloadPacks(List, DownloadListener)
+     * @return The list of packs (this should be unchanged)
+     */
+    public List<Pack> downloadPacks(List<Pack> packs) throws IOException, MCPKGException {
+        return downloadPacks(packs, pack -> {
+        });
+    }
+
+    /**
+     * Downloads the given packs, handing each one to the listener as soon as its own download
+     * finishes. Packs found in the {@link DownloadCache} are copied out of it without touching the
+     * network, and every other pack is added to the cache once it's downloaded
+     * 
+     * @param packs The packs to download
+     * @param listener Called for every pack that downloaded successfully
      * @return The list of packs (this should be unchanged)
+     * @throws DownloadFailedException If one or more of the packs couldn't be downloaded
      */
-    public abstract List<Pack> downloadPacks(List<Pack> packs) throws IOException;
+    public List<Pack> downloadPacks(List<Pack> packs, DownloadListener listener)
+            throws IOException, MCPKGException {
+        if (packs.isEmpty())
+            return packs;
+
+        Path downloadDir = Files.createTempDirectory("mcpkg");
+        DownloadCache cache = DownloadCache.getInstance();
+        List<Pack> uncachedPacks = new ArrayList<Pack>();
+        for (Pack pack : packs) {
+            if (fetchFromCache(cache, pack, downloadDir))
+                listener.packDownloaded(pack);
+            else
+                uncachedPacks.add(pack);
+        }
+
+        downloadUncachedPacks(uncachedPacks, downloadDir, pack -> {
+            try {
+                cache.store(pack);
+            } catch (IOException ex) {
+                // The pack itself downloaded fine
+                MCPKGLogger.log(Level.WARNING,
+                        "Couldn't add '" + pack + "' to the download cache: " + ex.getMessage());
+            }
+            listener.packDownloaded(pack);
+        });
+        return packs;
+    }
+
+    /**
+     * Copies a pack out of the cache. A cache that can't be read is passed over, as the pack can
+     * still be downloaded
+     * 
+     * @return true if the pack was found in the cache
+     */
+    private static boolean fetchFromCache(DownloadCache cache, Pack pack, Path downloadDir) {
+        try {
+            return cache.fetch(pack, downloadDir);
+        } catch (IOException ex) {
+            MCPKGLogger.log(Level.WARNING, "Couldn't read '" + pack
+                    + "' from the download cache, downloading it: " + ex.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Downloads the given packs concurrently on a pool of the config's {@code downloadThreads}
+     * workers. Packs that fail to download are reported together once every download has been
+     * attempted
+     * 
+     * @param packs The packs to download
+     * @param downloadDir The directory to download the pack data into
+     * @param listener Called for every pack that downloaded successfully
+     * @throws DownloadFailedException If one or more of the packs couldn't be downloaded
+     */
+    protected void downloadUncachedPacks(List<Pack> packs, Path downloadDir,
+            DownloadListener listener) throws IOException, MCPKGException {
+        if (packs.isEmpty())
+            return;
+
+        int threadCount = Math.max(1, Math.min(Platform.getConfig().downloadThreads, packs.size()));
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        CompletionService<Pack> completionService = new ExecutorCompletionService<Pack>(executor);
+        Map<Future<Pack>, Pack> pending = new HashMap<Future<Pack>, Pack>();
+        Map<Pack, Throwable> failures = new LinkedHashMap<Pack, Throwable>();
+
+        try {
+            for (Pack pack : packs)
+                pending.put(completionService.submit(() -> {
+                    downloadPack(pack, downloadDir);
+                    // Reading the central directory catches a truncated or mangled zip now,
+                    // rather than when the game tries to load it
+                    ZipCentralDirectory.open(pack.getDownloadedData().toPath()).close();
+                    return pack;
+                }), pack);
+
+            for (int i = 0; i < packs.size(); i++) {
+                Future<Pack> future = completionService.take();
+                Pack pack = pending.get(future);
+                try {
+                    future.get();
+                } catch (ExecutionException ex) {
+                    MCPKGLogger.log(Level.ERROR, "Couldn't download '" + pack + "': "
+                            + ex.getCause().getMessage());
+                    failures.put(pack, ex.getCause());
+                    continue;
+                }
+                listener.packDownloaded(pack);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while downloading packs");
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (!failures.isEmpty())
+            throw new DownloadFailedException(failures);
+    }
 
     /**
      * Downloads the given packs to memory, storing the results in the pack objects
@@ -23,7 +171,8 @@ public abstract class RemoteSource extends PackSource {
      * @see #downloadPacks(List)
      * @return The packs with their data downloaded
      */
-    public List<Pack> downloadPacksFromIds(List<String> packIds) throws IOException {
+    public List<Pack> downloadPacksFromIds(List<String> packIds)
+            throws IOException, MCPKGException {
         return downloadPacks(getPacks(packIds));
     }
 
@@ -31,12 +180,12 @@ public abstract class RemoteSource extends PackSource {
      * Checks for updates on the given packs (ignores any given packs that don't exist on the
      * remote)
      * 
-     * @param packs The pacsk to check for updates with
-     * @return A subset of the given packs that can be updated (with the new version)
-     * @throws IOException
+     * @param packs The packs to check for updates with
+     * @return The newer remote version of each of the given packs that can be updated, by the
+     *         given pack, in the order they were given
      */
-    public List<Pack> getUpdatable(List<Pack> packs) throws IOException {
-        List<Pack> packsToReturn = new ArrayList<Pack>();
+    public Map<Pack, Pack> getUpdates(List<Pack> packs) throws IOException {
+        Map<Pack, Pack> updates = new LinkedHashMap<Pack, Pack>();
         for (Pack pack : packs) {
             // Get the remote version of the pack,
             // skipping if that pack couldn't be found
@@ -44,11 +193,23 @@ public abstract class RemoteSource extends PackSource {
                 Pack packToCompareTo = getPack(pack.getPackId());
                 if (pack.getVersion().compareTo(packToCompareTo.getVersion()) < 0)
                     // Update this pack
-                    packsToReturn.add(packToCompareTo);
+                    updates.put(pack, packToCompareTo);
             } catch (PackNotFoundException ex) {
                 MCPKGLogger.log(Level.WARNING, ex.getMessage() + ". Skipping");
             }
         }
-        return packsToReturn;
+        return updates;
+    }
+
+    /**
+     * Checks for updates on the given packs (ignores any given packs that don't exist on the
+     * remote)
+     * 
+     * @param packs The pacsk to check for updates with
+     * @return A subset of the given packs that can be updated (with the new version)
+     * @throws IOException
+     */
+    public List<Pack> getUpdatable(List<Pack> packs) throws IOException {
+        return new ArrayList<Pack>(getUpdates(packs).values());
     }
 }
@@ -0,0 +1,405 @@
+package dev.benmitchell.mcpkg.sources;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import dev.benmitchell.mcpkg.packs.Pack;
+
+/**
+ * An inverted index over the ID, display name, description and category of a set of packs.
+ * Results are ranked with BM25, with matches in the ID and display name weighted above matches in
+ * the category and description. A keyword matches any word it's a prefix of, so "coord" finds
+ * "coordinates". A keyword found in the middle of a word of the ID or display name still matches,
+ * as searches did before there was an index, but counts for less than one found at the start
+ *
+ * The index is either built from packs and kept up to date with {@link #update(List)}, or read
+ * from {@link Tables} that were built and saved earlier, which can't be updated
+ */
+public class SearchIndex {
+    // BM25 parameters
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+    // How much a keyword that only prefixes a word counts for, compared to the whole word
+    private static final double PREFIX_WEIGHT = 0.6;
+    // How much a keyword inside a word of the ID or display name counts for
+    private static final double SUBSTRING_WEIGHT = 0.3;
+
+    private static final double ID_WEIGHT = 3;
+    private static final double DISPLAY_NAME_WEIGHT = 3;
+    private static final double CATEGORY_WEIGHT = 1.5;
+    private static final double DESCRIPTION_WEIGHT = 1;
+
+    /**
+     * A search index frozen into flat tables, so that it can be saved and read back without
+     * indexing every pack again. Documents are numbered by their position in the pack list. The
+     * postings of term i, in document order, are entries termStarts[i] up to termStarts[i + 1] of
+     * postingDocs and postingWeights
+     */
+    public static class Tables {
+        // Sorted, so that prefixes can be expanded with a binary search
+        public final String[] terms;
+        public final IntBuffer termStarts;
+        public final IntBuffer postingDocs;
+        public final FloatBuffer postingWeights;
+        public final FloatBuffer documentLengths;
+        // The lower case ID and display name of each document, for matching inside words
+        public final String[] foldedNames;
+
+        public Tables(String[] terms, IntBuffer termStarts, IntBuffer postingDocs,
+                FloatBuffer postingWeights, FloatBuffer documentLengths, String[] foldedNames) {
+            this.terms = terms;
+            this.termStarts = termStarts;
+            this.postingDocs = postingDocs;
+            this.postingWeights = postingWeights;
+            this.documentLengths = documentLengths;
+            this.foldedNames = foldedNames;
+        }
+    }
+
+    private static class Document {
+        final int docId;
+        final String key;
+        Pack pack;
+        int position;
+        final Map<String, Double> termWeights;
+        final double length;
+        final String foldedName;
+
+        Document(int docId, String key, Pack pack, Map<String, Double> termWeights) {
+            this.docId = docId;
+            this.key = key;
+            this.pack = pack;
+            this.termWeights = termWeights;
+            this.length = getLength(termWeights);
+            this.foldedName = getFoldedName(pack);
+        }
+    }
+
+    // Sorted so that prefixes can be expanded with a range query
+    private final TreeMap<String, Map<Integer, Double>> postings =
+            new TreeMap<String, Map<Integer, Double>>();
+    private final Map<Integer, Document> documents = new HashMap<Integer, Document>();
+    private final Map<String, Document> documentsByKey = new HashMap<String, Document>();
+    private int nextDocId = 0;
+    private double totalLength = 0;
+
+    // Set instead of the above when the index was read from tables
+    private final Tables tables;
+    private final List<Pack> tablePacks;
+
+    public SearchIndex() {
+        this(null, null);
+    }
+
+    private SearchIndex(Tables tables, List<Pack> tablePacks) {
+        this.tables = tables;
+        this.tablePacks = tablePacks;
+        if (tables != null)
+            for (int i = 0; i < tablePacks.size(); i++)
+                totalLength += tables.documentLengths.get(i);
+    }
+
+    /**
+     * @param packs The packs the tables were built from, in the same order
+     * @return An index that searches the tables, which can't be updated
+     */
+    public static SearchIndex fromTables(Tables tables, List<Pack> packs) {
+        return new SearchIndex(tables, packs);
+    }
+
+    /**
+     * Splits text into lower case words
+     */
+    public static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<String>();
+        if (text == null)
+            return tokens;
+
+        StringBuilder token = new StringBuilder();
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isLetterOrDigit(c))
+                token.append(Character.toLowerCase(c));
+            else if (token.length() > 0) {
+                tokens.add(token.toString());
+                token.setLength(0);
+            }
+        }
+        if (token.length() > 0)
+            tokens.add(token.toString());
+        return tokens;
+    }
+
+    private static void addField(Map<String, Double> termWeights, String text, double weight) {
+        for (String token : tokenize(text))
+            termWeights.merge(token, weight, Double::sum);
+    }
+
+    private static Map<String, Double> getTermWeights(Pack pack) {
+        Map<String, Double> termWeights = new HashMap<String, Double>();
+        addField(termWeights, pack.getPackId(), ID_WEIGHT);
+        addField(termWeights, pack.getDisplayName(), DISPLAY_NAME_WEIGHT);
+        addField(termWeights, pack.getCategory(), CATEGORY_WEIGHT);
+        addField(termWeights, pack.getDescription(), DESCRIPTION_WEIGHT);
+        return termWeights;
+    }
+
+    private static double getLength(Map<String, Double> termWeights) {
+        double length = 0;
+        for (double weight : termWeights.values())
+            length += weight;
+        return length;
+    }
+
+    /**
+     * @return The text that keywords are looked for inside of. The newline keeps a keyword from
+     *         matching across the ID and display name, as keywords are split into words
+     */
+    private static String getFoldedName(Pack pack) {
+        return (pack.getPackId() + "\n" + Objects.toString(pack.getDisplayName(), ""))
+                .toLowerCase();
+    }
+
+    /**
+     * Indexes the given packs into tables
+     */
+    public static Tables buildTables(List<Pack> packs) {
+        // Documents are added in order, so each term's postings stay in document order
+        TreeMap<String, Map<Integer, Double>> termPostings =
+                new TreeMap<String, Map<Integer, Double>>();
+        float[] documentLengths = new float[packs.size()];
+        String[] foldedNames = new String[packs.size()];
+        int postingCount = 0;
+        for (int i = 0; i < packs.size(); i++) {
+            Map<String, Double> termWeights = getTermWeights(packs.get(i));
+            documentLengths[i] = (float) getLength(termWeights);
+            foldedNames[i] = getFoldedName(packs.get(i));
+            for (var term : termWeights.entrySet())
+                termPostings
+                        .computeIfAbsent(term.getKey(), t -> new LinkedHashMap<Integer, Double>())
+                        .put(i, term.getValue());
+            postingCount += termWeights.size();
+        }
+
+        String[] terms = termPostings.keySet().toArray(new String[0]);
+        int[] termStarts = new int[terms.length + 1];
+        int[] postingDocs = new int[postingCount];
+        float[] postingWeights = new float[postingCount];
+        int posting = 0;
+        for (int i = 0; i < terms.length; i++) {
+            termStarts[i] = posting;
+            for (var entry : termPostings.get(terms[i]).entrySet()) {
+                postingDocs[posting] = entry.getKey();
+                postingWeights[posting] = entry.getValue().floatValue();
+                posting++;
+            }
+        }
+        termStarts[terms.length] = posting;
+
+        return new Tables(terms, IntBuffer.wrap(termStarts), IntBuffer.wrap(postingDocs),
+                FloatBuffer.wrap(postingWeights), FloatBuffer.wrap(documentLengths), foldedNames);
+    }
+
+    /**
+     * @return A key that changes whenever any indexed field of the pack changes
+     */
+    private static String getKey(Pack pack) {
+        return pack.getPackId().toLowerCase() + "@" + pack.getVersion() + "#"
+                + Objects.hash(pack.getDisplayName(), pack.getDescription(), pack.getCategory());
+    }
+
+    private void add(Pack pack, String key) {
+        Map<String, Double> termWeights = getTermWeights(pack);
+        Document document = new Document(nextDocId++, key, pack, termWeights);
+        documents.put(document.docId, document);
+        documentsByKey.put(key, document);
+        totalLength += document.length;
+        for (var term : termWeights.entrySet())
+            postings.computeIfAbsent(term.getKey(), t -> new HashMap<Integer, Double>())
+                    .put(document.docId, term.getValue());
+    }
+
+    private void remove(Document document) {
+        documents.remove(document.docId);
+        documentsByKey.remove(document.key);
+        totalLength -= document.length;
+        for (String term : document.termWeights.keySet()) {
+            Map<Integer, Double> termPostings = postings.get(term);
+            termPostings.remove(document.docId);
+            if (termPostings.isEmpty())
+                postings.remove(term);
+        }
+    }
+
+    /**
+     * Brings the index in line with the given packs. Packs that haven't changed since the last
+     * update keep their postings, so only new, changed and removed packs are (re)indexed
+     *
+     * @throws UnsupportedOperationException If the index was read from tables
+     */
+    public synchronized void update(List<Pack> packs) {
+        if (tables != null)
+            throw new UnsupportedOperationException("An index read from tables can't be updated");
+
+        Set<String> keys = new HashSet<String>();
+        for (int i = 0; i < packs.size(); i++) {
+            Pack pack = packs.get(i);
+            String key = getKey(pack);
+            keys.add(key);
+            if (!documentsByKey.containsKey(key))
+                add(pack, key);
+            Document document = documentsByKey.get(key);
+            document.pack = pack;
+            document.position = i;
+        }
+
+        for (Document document : new ArrayList<Document>(documents.values()))
+            if (!keys.contains(document.key))
+                remove(document);
+    }
+
+    private int getDocumentCount() {
+        return tables != null ? tablePacks.size() : documents.size();
+    }
+
+    private static double getIdf(int documentCount, int matches) {
+        return Math.log(1 + (documentCount - matches + 0.5) / (matches + 0.5));
+    }
+
+    private static double getScore(double tf, double length, double averageLength, double idf,
+            double matchWeight) {
+        return matchWeight * idf * tf * (K1 + 1)
+                / (tf + K1 * (1 - B + B * length / averageLength));
+    }
+
+    /**
+     * Scores every document containing a word that starts with the query term, from the postings
+     * built by {@link #update(List)}
+     */
+    private void scorePostings(String queryTerm, double averageLength,
+            Map<Integer, Double> termScores) {
+        SortedMap<String, Map<Integer, Double>> expansions =
+                postings.subMap(queryTerm, queryTerm + Character.MAX_VALUE);
+        for (var expansion : expansions.entrySet()) {
+            Map<Integer, Double> termPostings = expansion.getValue();
+            double idf = getIdf(documents.size(), termPostings.size());
+            double matchWeight = expansion.getKey().equals(queryTerm) ? 1 : PREFIX_WEIGHT;
+            for (var posting : termPostings.entrySet()) {
+                double length = documents.get(posting.getKey()).length;
+                termScores.merge(posting.getKey(),
+                        getScore(posting.getValue(), length, averageLength, idf, matchWeight),
+                        Math::max);
+            }
+        }
+    }
+
+    /**
+     * Scores every document containing a word that starts with the query term, from the tables
+     */
+    private void scoreTables(String queryTerm, double averageLength,
+            Map<Integer, Double> termScores) {
+        int term = Arrays.binarySearch(tables.terms, queryTerm);
+        if (term < 0)
+            term = -term - 1;
+        for (; term < tables.terms.length && tables.terms[term].startsWith(queryTerm); term++) {
+            int start = tables.termStarts.get(term);
+            int end = tables.termStarts.get(term + 1);
+            double idf = getIdf(tablePacks.size(), end - start);
+            double matchWeight = tables.terms[term].equals(queryTerm) ? 1 : PREFIX_WEIGHT;
+            for (int posting = start; posting < end; posting++) {
+                int docId = tables.postingDocs.get(posting);
+                termScores.merge(docId,
+                        getScore(tables.postingWeights.get(posting),
+                                tables.documentLengths.get(docId), averageLength, idf,
+                                matchWeight),
+                        Math::max);
+            }
+        }
+    }
+
+    /**
+     * Scores the documents that only contain the query term inside a word of their ID or display
+     * name, which the postings can't find
+     */
+    private void scoreSubstrings(String queryTerm, Map<Integer, Double> termScores) {
+        List<Integer> matches = new ArrayList<Integer>();
+        if (tables != null) {
+            for (int docId = 0; docId < tables.foldedNames.length; docId++)
+                if (!termScores.containsKey(docId) && tables.foldedNames[docId].contains(queryTerm))
+                    matches.add(docId);
+        } else {
+            for (Document document : documents.values())
+                if (!termScores.containsKey(document.docId)
+                        && document.foldedName.contains(queryTerm))
+                    matches.add(document.docId);
+        }
+
+        double score = SUBSTRING_WEIGHT * getIdf(getDocumentCount(), matches.size());
+        for (int docId : matches)
+            termScores.put(docId, score);
+    }
+
+    private Pack getPack(int docId) {
+        return tables != null ? tablePacks.get(docId) : documents.get(docId).pack;
+    }
+
+    private int getPosition(int docId) {
+        return tables != null ? docId : documents.get(docId).position;
+    }
+
+    /**
+     * Searches the index
+     *
+     * @param keywords The keywords to search for. Each one is split into words
+     * @param matchAll If true, only packs matching every word are returned. Otherwise packs
+     *        matching any word are returned
+     * @return Each matching pack once, best match first
+     */
+    public synchronized List<Pack> search(List<String> keywords, boolean matchAll) {
+        Set<String> queryTerms = new HashSet<String>();
+        for (String keyword : keywords)
+            queryTerms.addAll(tokenize(keyword));
+        if (queryTerms.isEmpty() || getDocumentCount() == 0)
+            return new ArrayList<Pack>();
+
+        double averageLength = totalLength / getDocumentCount();
+        Map<Integer, Double> scores = new HashMap<Integer, Double>();
+        Map<Integer, Integer> matchedTerms = new HashMap<Integer, Integer>();
+        for (String queryTerm : queryTerms) {
+            Map<Integer, Double> termScores = new HashMap<Integer, Double>();
+            if (tables != null)
+                scoreTables(queryTerm, averageLength, termScores);
+            else
+                scorePostings(queryTerm, averageLength, termScores);
+            scoreSubstrings(queryTerm, termScores);
+            for (var termScore : termScores.entrySet()) {
+                scores.merge(termScore.getKey(), termScore.getValue(), Double::sum);
+                matchedTerms.merge(termScore.getKey(), 1, Integer::sum);
+            }
+        }
+
+        List<Integer> results = new ArrayList<Integer>();
+        for (int docId : scores.keySet())
+            if (!matchAll || matchedTerms.get(docId) == queryTerms.size())
+                results.add(docId);
+        results.sort(Comparator.comparingDouble((Integer docId) -> -scores.get(docId))
+                .thenComparingInt(this::getPosition));
+
+        List<Pack> packs = new ArrayList<Pack>(results.size());
+        for (int docId : results)
+            packs.add(getPack(docId));
+        return packs;
+    }
+}
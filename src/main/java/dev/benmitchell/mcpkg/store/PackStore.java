@@ -0,0 +1,361 @@
+package dev.benmitchell.mcpkg.store;
+
+import java.io.IOException;
+import java.lang.System.Logger.Level;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import dev.benmitchell.mcpkg.Checksums;
+import dev.benmitchell.mcpkg.MCPKGLogger;
+import dev.benmitchell.mcpkg.Platform;
+
+/**
+ * A content-addressed store of installed pack files, shared by every world on the machine. Each
+ * distinct pack file is stored once, named after its SHA-256 hash, and installs are hardlinks to
+ * it, so installing the same pack into many worlds costs a directory entry per world rather than
+ * a copy. Where a hardlink can't be made the file is copied instead.
+ * 
+ * The store keeps a list of the installed files that refer to each of its files, and a file is
+ * deleted from the store once nothing refers to it any more. Files added by a transaction that
+ * hasn't finished yet are leased to it, and aren't deleted while the process running it is alive.
+ * 
+ * Every process on the machine shares the store, so each operation holds a lock on it and reads
+ * the index afresh before changing it
+ */
+public class PackStore {
+    public static class Lease {
+        // The process running the transaction
+        public long pid;
+        public List<String> hashes = new ArrayList<String>();
+    }
+
+    public static class Index {
+        // The installed files referring to each stored file, by hash
+        public Map<String, List<String>> references = new HashMap<String, List<String>>();
+        // The stored files added by each unfinished transaction, by transaction ID
+        public Map<String, Lease> leases = new HashMap<String, Lease>();
+    }
+
+    private static PackStore instance = null;
+
+    /**
+     * @return The store in the mcpkg data directory
+     */
+    public static synchronized PackStore getInstance() {
+        if (instance == null)
+            instance = new PackStore(Platform.getConfig().dataPath.resolve("store"));
+        return instance;
+    }
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final Path storeDir;
+    private final Path objectsDir;
+    private final Path indexFile;
+    private final Path lockFile;
+    private FileChannel lockChannel = null;
+    private Index index = null;
+    private Map<String, String> hashesByFile;
+
+    public PackStore(Path storeDir) {
+        this.storeDir = storeDir;
+        this.objectsDir = storeDir.resolve("objects");
+        this.indexFile = storeDir.resolve("index.json");
+        this.lockFile = storeDir.resolve("store.lock");
+    }
+
+    private Path getObject(String sha256) {
+        return objectsDir.resolve(sha256 + ".zip");
+    }
+
+    /**
+     * Locks the store against every other process, waiting for any that holds it. Threads in this
+     * process are kept apart by the methods being synchronized
+     */
+    private FileLock lock() throws IOException {
+        Files.createDirectories(objectsDir);
+        if (lockChannel == null)
+            lockChannel = FileChannel.open(lockFile, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE);
+        return lockChannel.lock();
+    }
+
+    /**
+     * Reads the index, which another process may have changed since it was last read. The store
+     * must be locked
+     */
+    private void load() throws IOException {
+        index = new Index();
+        if (Files.exists(indexFile)) {
+            try {
+                index = MAPPER.readValue(indexFile.toFile(), Index.class);
+            } catch (IOException ex) {
+                MCPKGLogger.log(Level.WARNING,
+                        "The pack store index is unreadable, starting a new one");
+            }
+        }
+        hashesByFile = new HashMap<String, String>();
+        for (var references : index.references.entrySet())
+            for (String file : references.getValue())
+                hashesByFile.put(file, references.getKey());
+    }
+
+    private void save() throws IOException {
+        Path tmpFile = Files.createTempFile(storeDir, "index", ".json.tmp");
+        MAPPER.writeValue(tmpFile.toFile(), index);
+        Files.move(tmpFile, indexFile, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Replaces a file with a link to the stored copy of its contents, adding it to the store first
+     * if it isn't there yet. The file is only linked to the store, and isn't referred to until
+     * {@link #updateReferences(String, Map, Set)} is called. Until then, or until
+     * {@link #releaseLease(String)} is, the stored file is leased to the transaction
+     * 
+     * @param leaseId The ID of the transaction adding the file
+     * @param sha256 The SHA-256 hash of the file, from {@link Checksums}
+     */
+    public synchronized void add(String leaseId, Path file, String sha256) throws IOException {
+        FileLock lock = lock();
+        try {
+            load();
+            Lease lease = index.leases.computeIfAbsent(leaseId, id -> new Lease());
+            lease.pid = ProcessHandle.current().pid();
+            if (!lease.hashes.contains(sha256))
+                lease.hashes.add(sha256);
+            save();
+            link(file, sha256);
+        } finally {
+            lock.release();
+        }
+    }
+
+    private void link(Path file, String sha256) throws IOException {
+        Path object = getObject(sha256);
+        // A stored file that's a different size was damaged through one of its links
+        if (!Files.exists(object) || Files.size(object) != Files.size(file)) {
+            // Moved in through a temporary file, as a move across filesystems isn't atomic
+            Path tmpObject = Files.createTempFile(objectsDir, "object", ".tmp");
+            Files.move(file, tmpObject, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(tmpObject, object, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        Path tmpFile = file.resolveSibling("." + file.getFileName() + ".tmp");
+        Files.deleteIfExists(tmpFile);
+        try {
+            Files.createLink(tmpFile, object);
+        } catch (UnsupportedOperationException | IOException ex) {
+            // Either the filesystem has no hardlinks, it's a different filesystem from the store,
+            // or the stored file has reached its link limit. Files.copy clones the file instead of
+            // copying its data where both the JDK and the filesystem support it
+            MCPKGLogger.log(Level.DEBUG, "Couldn't link '" + file
+                    + "' to the pack store, copying it: " + ex.getMessage());
+            Files.copy(object, tmpFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Checks the stored file that an installed file refers to, and removes it from the store if
+     * its contents no longer match its hash. As installs are hardlinks, changing an installed file
+     * in place changes the stored file too, and it mustn't be linked into any more worlds
+     * 
+     * @return true if the stored file was damaged and has been removed
+     */
+    public synchronized boolean removeIfDamaged(Path installedFile) throws IOException {
+        FileLock lock = lock();
+        try {
+            load();
+            String sha256 = hashesByFile.get(installedFile.toAbsolutePath().toString());
+            if (sha256 == null || !Files.exists(getObject(sha256))
+                    || Checksums.sha256(getObject(sha256)).equals(sha256))
+                return false;
+
+            MCPKGLogger.log(Level.WARNING, "Removing the damaged '"
+                    + getObject(sha256).getFileName() + "' from the pack store");
+            Files.delete(getObject(sha256));
+            return true;
+        } finally {
+            lock.release();
+        }
+    }
+
+    private void removeReference(String file) {
+        String sha256 = hashesByFile.remove(file);
+        if (sha256 == null)
+            return;
+        List<String> references = index.references.get(sha256);
+        references.remove(file);
+        if (references.isEmpty())
+            index.references.remove(sha256);
+    }
+
+    /**
+     * Drops the leases of transactions whose process has died without finishing them
+     * 
+     * @return Every stored file that's still leased, by hash
+     */
+    private Set<String> getLeasedHashes() {
+        Set<String> leased = new HashSet<String>();
+        for (var lease : new ArrayList<Lease>(index.leases.values())) {
+            if (ProcessHandle.of(lease.pid).map(ProcessHandle::isAlive).orElse(false))
+                leased.addAll(lease.hashes);
+            else
+                index.leases.values().remove(lease);
+        }
+        return leased;
+    }
+
+    /**
+     * Deletes every stored file that nothing refers to or leases
+     * 
+     * @return The number of files deleted
+     */
+    private int deleteUnreferenced() throws IOException {
+        Set<String> leased = getLeasedHashes();
+        int deleted = 0;
+        try (var objects = Files.list(objectsDir)) {
+            for (Path object : (Iterable<Path>) objects::iterator) {
+                String fileName = object.getFileName().toString();
+                // Skip files still being moved in
+                if (!fileName.endsWith(".zip"))
+                    continue;
+                String sha256 = fileName.substring(0, fileName.indexOf('.'));
+                if (index.references.containsKey(sha256) || leased.contains(sha256))
+                    continue;
+                MCPKGLogger.log(Level.DEBUG, "Removing '" + fileName + "' from the pack store");
+                Files.delete(object);
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Records installed files that refer to the store, and ones that no longer do, then deletes
+     * the stored files that are no longer referred to
+     * 
+     * @param leaseId The ID of the transaction that installed and removed the files, whose lease
+     *        ends now that its files are referred to
+     * @param added The hash of each newly installed file, by installed file. These replace any
+     *        existing references of the same files
+     * @param removed Installed files that have been removed
+     */
+    public synchronized void updateReferences(String leaseId, Map<Path, String> added,
+            Set<Path> removed) throws IOException {
+        FileLock lock = lock();
+        try {
+            load();
+            for (Path file : removed)
+                removeReference(file.toAbsolutePath().toString());
+            for (var reference : added.entrySet()) {
+                String file = reference.getKey().toAbsolutePath().toString();
+                removeReference(file);
+                hashesByFile.put(file, reference.getValue());
+                index.references
+                        .computeIfAbsent(reference.getValue(), key -> new ArrayList<String>())
+                        .add(file);
+            }
+            index.leases.remove(leaseId);
+
+            deleteUnreferenced();
+            save();
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * Ends a transaction's lease without it referring to anything, as it was rolled back. Its
+     * files are deleted by the next garbage collection if nothing else refers to them
+     */
+    public synchronized void releaseLease(String leaseId) throws IOException {
+        FileLock lock = lock();
+        try {
+            load();
+            if (index.leases.remove(leaseId) != null)
+                save();
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * Drops references from installed files that have since been deleted, for instance along with
+     * their world, and deletes the stored files that are no longer referred to
+     * 
+     * @return The number of stored files deleted
+     */
+    public synchronized int collectGarbage() throws IOException {
+        FileLock lock = lock();
+        try {
+            load();
+            Set<String> missing = new HashSet<String>();
+            for (String file : hashesByFile.keySet())
+                if (!Files.exists(Path.of(file)))
+                    missing.add(file);
+            for (String file : missing)
+                removeReference(file);
+
+            int deleted = deleteUnreferenced();
+            save();
+            return deleted;
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * @return The number of distinct files in the store
+     */
+    public synchronized int getObjectCount() throws IOException {
+        FileLock lock = lock();
+        try (var objects = Files.list(objectsDir)) {
+            return (int) objects.count();
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * @return The number of installed files that refer to the store
+     */
+    public synchronized int getReferenceCount() throws IOException {
+        FileLock lock = lock();
+        try {
+            load();
+            return hashesByFile.size();
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * @return The total size of the stored files in bytes
+     */
+    public synchronized long getSize() throws IOException {
+        FileLock lock = lock();
+        try (var objects = Files.list(objectsDir)) {
+            long size = 0;
+            for (Path object : (Iterable<Path>) objects::iterator)
+                size += Files.size(object);
+            return size;
+        } finally {
+            lock.release();
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package dev.benmitchell.mcpkg.vanillatweaks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+import dev.benmitchell.mcpkg.packs.Pack;
+import dev.benmitchell.mcpkg.packs.PackType;
+import dev.benmitchell.mcpkg.vanillatweaks.VTSource.VTJson;
+import dev.benmitchell.mcpkg.vanillatweaks.VTSource.VTJson.Category.RemotePack;
+
+/**
+ * Reads a Vanilla Tweaks catalog (laid out like {@link VTSource.VTJson}) straight into packs with
+ * Jackson's streaming parser. Only the fields that mcpkg uses are read, everything else (previews,
+ * videos, warnings etc.) is skipped without being bound to anything
+ */
+public class VTCatalogReader {
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    /**
+     * Holds the databind reader, so that only {@link #readBound(InputStream, PackType)} loads it
+     */
+    private static class BoundReader {
+        static final ObjectReader CATALOG_READER = new ObjectMapper()
+                .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+                .readerFor(VTJson.class);
+    }
+
+    /**
+     * @param iStream The catalog JSON
+     * @param packType The type of every pack in the catalog
+     * @return The packs in the catalog, in catalog order
+     */
+    public static List<Pack> read(InputStream iStream, PackType packType) throws IOException {
+        List<Pack> packs = new ArrayList<Pack>();
+        try (JsonParser parser = JSON_FACTORY.createParser(iStream)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT)
+                throw new JsonParseException(parser, "Expected the catalog to be an object");
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                parser.nextToken();
+                if (field.equals("categories") && parser.currentToken() == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT)
+                        readCategory(parser, packType, packs);
+                } else
+                    parser.skipChildren();
+            }
+        }
+        return packs;
+    }
+
+    /**
+     * Reads a catalog the way it was read before this reader, by binding all of it to
+     * {@link VTJson} with databind. Nothing in mcpkg uses this, it's kept so that
+     * bench/catalog-parse.sh can compare the two on the same catalog
+     * 
+     * @see #read(InputStream, PackType)
+     */
+    public static List<Pack> readBound(InputStream iStream, PackType packType) throws IOException {
+        VTJson jsonData = BoundReader.CATALOG_READER.readValue(iStream);
+        List<Pack> packs = new ArrayList<Pack>();
+        for (VTJson.Category category : jsonData.categories) {
+            for (RemotePack remotePack : category.packs) {
+                // Filled in the same as the streaming reader leaves fields that are missing
+                if (remotePack.description == null)
+                    remotePack.description = "";
+                if (remotePack.incompatible == null)
+                    remotePack.incompatible = new ArrayList<String>();
+                if (remotePack.requires == null)
+                    remotePack.requires = new ArrayList<String>();
+                packs.add(createPack(remotePack, packType, category.category));
+            }
+        }
+        return packs;
+    }
+
+    private static void readCategory(JsonParser parser, PackType packType, List<Pack> packs)
+            throws IOException {
+        String category = null;
+        // The category name isn't guaranteed to come before its packs
+        List<RemotePack> remotePacks = new ArrayList<RemotePack>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            if (field.equals("category"))
+                category = parser.getValueAsString();
+            else if (field.equals("packs") && parser.currentToken() == JsonToken.START_ARRAY) {
+                while (parser.nextToken() == JsonToken.START_OBJECT)
+                    remotePacks.add(readPack(parser));
+            } else
+                parser.skipChildren();
+        }
+
+        for (RemotePack remotePack : remotePacks)
+            packs.add(createPack(remotePack, packType, category));
+    }
+
+    private static RemotePack readPack(JsonParser parser) throws IOException {
+        RemotePack pack = new RemotePack();
+        pack.description = "";
+        pack.incompatible = new ArrayList<String>();
+        pack.requires = new ArrayList<String>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            switch (field) {
+                case "name":
+                    pack.name = parser.getValueAsString();
+                    break;
+                case "display":
+                    pack.display = parser.getValueAsString();
+                    break;
+                case "description":
+                    pack.description = parser.getValueAsString("");
+                    break;
+                case "version":
+                    pack.version = parser.getValueAsString();
+                    break;
+                case "incompatible":
+                    readStrings(parser, pack.incompatible);
+                    break;
+                case "requires":
+                    readStrings(parser, pack.requires);
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+        return pack;
+    }
+
+    private static void readStrings(JsonParser parser, List<String> strings) throws IOException {
+        if (parser.currentToken() != JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return;
+        }
+        while (parser.nextToken() != JsonToken.END_ARRAY)
+            if (parser.currentToken() == JsonToken.VALUE_STRING)
+                strings.add(parser.getText());
+            else
+                parser.skipChildren();
+    }
+
+    private static Pack createPack(RemotePack remotePack, PackType packType, String category) {
+        switch (packType) {
+            case CRAFTINGTWEAK:
+                return new VTCraftingPack(remotePack, category);
+            case DATAPACK:
+                return new VTDataPack(remotePack, category);
+            case RESOURCEPACK:
+                return new VTResourcePack(remotePack, category);
+            default:
+                throw new RuntimeException(
+                        "This packtype (" + packType.toString() + ") is not valid");
+        }
+    }
+}
@@ -0,0 +1,366 @@
+package dev.benmitchell.mcpkg.vanillatweaks;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import dev.benmitchell.mcpkg.packs.Pack;
+import dev.benmitchell.mcpkg.packs.PackType;
+import dev.benmitchell.mcpkg.sources.PackIndex;
+import dev.benmitchell.mcpkg.sources.SearchIndex;
+import dev.benmitchell.mcpkg.vanillatweaks.VTSource.VTJson.Category.RemotePack;
+
+/**
+ * A compact binary copy of the parsed catalog, so that short-lived commands can skip parsing the
+ * catalog JSON. The file is laid out as:
+ * 
+ * <pre>
+ * header:  magic, format version
+ * strings: count, then each string as a length-prefixed UTF-8 run. Every distinct string is
+ *          stored once and referred to by its index
+ * packs:   count, then each pack as its type, name, display name, description, category,
+ *          packed version, and the string indices of its incompatible packs and dependencies
+ * folded:  the lower case ID and short name of every pack
+ * lookup:  an open-addressed hash table of lower case IDs and short names to pack indices
+ * search:  the {@link SearchIndex.Tables} of the packs, as the sorted terms, the start of each
+ *          term's postings, the posting documents and weights, the length of each document and
+ *          the folded name of each document
+ * </pre>
+ * 
+ * All integers and floats are big-endian. The snapshot is read through a read-only memory-mapped
+ * buffer, and the lookup and search tables are used straight from it
+ */
+public class VTCatalogSnapshot {
+    private static final int MAGIC = 0x4d43504b; // "MCPK"
+    private static final int FORMAT_VERSION = 4;
+
+    private final List<Pack> packs;
+    private final String[] foldedIds;
+    private final String[] foldedNames;
+    private final IntBuffer lookupTable;
+    private final SearchIndex.Tables searchTables;
+    private SearchIndex searchIndex;
+
+    private VTCatalogSnapshot(List<Pack> packs, String[] foldedIds, String[] foldedNames,
+            IntBuffer lookupTable, SearchIndex.Tables searchTables) {
+        this.packs = packs;
+        this.foldedIds = foldedIds;
+        this.foldedNames = foldedNames;
+        this.lookupTable = lookupTable;
+        this.searchTables = searchTables;
+    }
+
+    /**
+     * @return true if the snapshot exists and was written after every one of the sources was last
+     *         modified
+     */
+    public static boolean isNewerThan(Path snapshotFile, List<File> sources) {
+        File file = snapshotFile.toFile();
+        if (!file.exists())
+            return false;
+        for (File source : sources)
+            if (source.lastModified() >= file.lastModified())
+                return false;
+        return true;
+    }
+
+    private static int packVersion(Pack.Version version) throws IOException {
+        if (version.major >= 1024 || version.minor >= 1024 || version.revision >= 1024
+                || version.major < 0 || version.minor < 0 || version.revision < 0)
+            throw new IOException("The version " + version + " is too large to snapshot");
+        return (version.major << 20) | (version.minor << 10) | version.revision;
+    }
+
+    private static Pack.Version unpackVersion(int packed) {
+        return new Pack.Version(packed >>> 20, (packed >>> 10) & 0x3ff, packed & 0x3ff);
+    }
+
+    private static int getTableSize(int packCount) {
+        // Two keys per pack, kept under a quarter full so probes stay short
+        int size = 16;
+        while (size < packCount * 8)
+            size <<= 1;
+        return size;
+    }
+
+    private static void intern(String string, Map<String, Integer> stringIds,
+            List<String> strings) {
+        if (!stringIds.containsKey(string)) {
+            stringIds.put(string, strings.size());
+            strings.add(string);
+        }
+    }
+
+    /**
+     * Writes a snapshot of the given packs, replacing any existing snapshot atomically
+     */
+    public static void write(Path snapshotFile, List<Pack> packs) throws IOException {
+        SearchIndex.Tables searchTables = SearchIndex.buildTables(packs);
+
+        // Intern every string
+        Map<String, Integer> stringIds = new HashMap<String, Integer>();
+        List<String> strings = new ArrayList<String>();
+        for (Pack pack : packs) {
+            VTPack vtPack = (VTPack) pack;
+            List<String> packStrings = new ArrayList<String>();
+            packStrings.add(vtPack.getName());
+            packStrings.add(vtPack.getDisplayName());
+            packStrings.add(vtPack.getDescription());
+            packStrings.add(vtPack.getCategory());
+            packStrings.addAll(vtPack.getIncompatible());
+            packStrings.addAll(vtPack.getDependencies());
+            packStrings.add(vtPack.getPackId().toLowerCase());
+            packStrings.add(PackIndex.getShortName(vtPack.getPackId()).toLowerCase());
+            for (String string : packStrings)
+                intern(string, stringIds, strings);
+        }
+        for (String term : searchTables.terms)
+            intern(term, stringIds, strings);
+        for (String foldedName : searchTables.foldedNames)
+            intern(foldedName, stringIds, strings);
+
+        // Build the lookup table
+        int[] table = new int[getTableSize(packs.size())];
+        int mask = table.length - 1;
+        for (int i = 0; i < packs.size(); i++) {
+            String foldedId = packs.get(i).getPackId().toLowerCase();
+            String foldedName = PackIndex.getShortName(packs.get(i).getPackId()).toLowerCase();
+            for (String key : foldedId.equals(foldedName) ? new String[] {foldedId}
+                    : new String[] {foldedId, foldedName}) {
+                int slot = key.hashCode() & mask;
+                while (table[slot] != 0)
+                    slot = (slot + 1) & mask;
+                table[slot] = i + 1;
+            }
+        }
+
+        Path tmpFile = Files.createTempFile(snapshotFile.getParent(),
+                snapshotFile.getFileName().toString(), ".tmp");
+        try (DataOutputStream oStream = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tmpFile)))) {
+            oStream.writeInt(MAGIC);
+            oStream.writeInt(FORMAT_VERSION);
+
+            oStream.writeInt(strings.size());
+            for (String string : strings) {
+                byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                oStream.writeInt(bytes.length);
+                oStream.write(bytes);
+            }
+
+            oStream.writeInt(packs.size());
+            for (Pack pack : packs) {
+                VTPack vtPack = (VTPack) pack;
+                oStream.writeByte(vtPack.getPackType().ordinal());
+                oStream.writeInt(stringIds.get(vtPack.getName()));
+                oStream.writeInt(stringIds.get(vtPack.getDisplayName()));
+                oStream.writeInt(stringIds.get(vtPack.getDescription()));
+                oStream.writeInt(stringIds.get(vtPack.getCategory()));
+                oStream.writeInt(packVersion(vtPack.getVersion()));
+                for (List<String> references : List.of(vtPack.getIncompatible(),
+                        vtPack.getDependencies())) {
+                    oStream.writeShort(references.size());
+                    for (String reference : references)
+                        oStream.writeInt(stringIds.get(reference));
+                }
+            }
+
+            for (Pack pack : packs) {
+                oStream.writeInt(stringIds.get(pack.getPackId().toLowerCase()));
+                oStream.writeInt(
+                        stringIds.get(PackIndex.getShortName(pack.getPackId()).toLowerCase()));
+            }
+
+            oStream.writeInt(table.length);
+            for (int slot : table)
+                oStream.writeInt(slot);
+
+            oStream.writeInt(searchTables.terms.length);
+            for (String term : searchTables.terms)
+                oStream.writeInt(stringIds.get(term));
+            for (int i = 0; i <= searchTables.terms.length; i++)
+                oStream.writeInt(searchTables.termStarts.get(i));
+            int postingCount = searchTables.postingDocs.limit();
+            oStream.writeInt(postingCount);
+            for (int i = 0; i < postingCount; i++)
+                oStream.writeInt(searchTables.postingDocs.get(i));
+            for (int i = 0; i < postingCount; i++)
+                oStream.writeFloat(searchTables.postingWeights.get(i));
+            for (int i = 0; i < packs.size(); i++)
+                oStream.writeFloat(searchTables.documentLengths.get(i));
+            for (String foldedName : searchTables.foldedNames)
+                oStream.writeInt(stringIds.get(foldedName));
+        } catch (IOException ex) {
+            Files.delete(tmpFile);
+            throw ex;
+        }
+        Files.move(tmpFile, snapshotFile, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static List<String> readReferences(ByteBuffer buffer, String[] strings) {
+        int count = buffer.getShort() & 0xffff;
+        List<String> references = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++)
+            references.add(strings[buffer.getInt()]);
+        return references;
+    }
+
+    /**
+     * @return A view of the next count ints of the buffer, which is moved past them
+     */
+    private static IntBuffer sliceInts(ByteBuffer buffer, int count) {
+        ByteBuffer slice = buffer.slice();
+        slice.limit(count * Integer.BYTES);
+        buffer.position(buffer.position() + count * Integer.BYTES);
+        return slice.asIntBuffer();
+    }
+
+    /**
+     * @return A view of the next count floats of the buffer, which is moved past them
+     */
+    private static FloatBuffer sliceFloats(ByteBuffer buffer, int count) {
+        ByteBuffer slice = buffer.slice();
+        slice.limit(count * Float.BYTES);
+        buffer.position(buffer.position() + count * Float.BYTES);
+        return slice.asFloatBuffer();
+    }
+
+    /**
+     * Reads a snapshot written by {@link #write(Path, List)}
+     * 
+     * @throws IOException If the snapshot can't be read or was written by another version of mcpkg
+     */
+    public static VTCatalogSnapshot read(Path snapshotFile) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(snapshotFile, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION)
+                throw new IOException("'" + snapshotFile + "' isn't a compatible snapshot");
+
+            String[] strings = new String[buffer.getInt()];
+            for (int i = 0; i < strings.length; i++) {
+                byte[] bytes = new byte[buffer.getInt()];
+                buffer.get(bytes);
+                strings[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+
+            PackType[] packTypes = PackType.values();
+            int packCount = buffer.getInt();
+            List<Pack> packs = new ArrayList<Pack>(packCount);
+            for (int i = 0; i < packCount; i++) {
+                PackType packType = packTypes[buffer.get()];
+                RemotePack remotePack = new RemotePack();
+                remotePack.name = strings[buffer.getInt()];
+                remotePack.display = strings[buffer.getInt()];
+                remotePack.description = strings[buffer.getInt()];
+                String category = strings[buffer.getInt()];
+                int packedVersion = buffer.getInt();
+                // An unknown version is stored as 0.0.0
+                remotePack.version =
+                        packedVersion == 0 ? null : unpackVersion(packedVersion).toString();
+                remotePack.incompatible = readReferences(buffer, strings);
+                remotePack.requires = readReferences(buffer, strings);
+
+                switch (packType) {
+                    case CRAFTINGTWEAK:
+                        packs.add(new VTCraftingPack(remotePack, category));
+                        break;
+                    case DATAPACK:
+                        packs.add(new VTDataPack(remotePack, category));
+                        break;
+                    case RESOURCEPACK:
+                        packs.add(new VTResourcePack(remotePack, category));
+                        break;
+                    default:
+                        throw new IOException("'" + snapshotFile + "' contains an invalid pack");
+                }
+            }
+
+            String[] foldedIds = new String[packCount];
+            String[] foldedNames = new String[packCount];
+            for (int i = 0; i < packCount; i++) {
+                foldedIds[i] = strings[buffer.getInt()];
+                foldedNames[i] = strings[buffer.getInt()];
+            }
+
+            IntBuffer lookupTable = sliceInts(buffer, buffer.getInt());
+
+            String[] terms = new String[buffer.getInt()];
+            for (int i = 0; i < terms.length; i++)
+                terms[i] = strings[buffer.getInt()];
+            IntBuffer termStarts = sliceInts(buffer, terms.length + 1);
+            int postingCount = buffer.getInt();
+            IntBuffer postingDocs = sliceInts(buffer, postingCount);
+            FloatBuffer postingWeights = sliceFloats(buffer, postingCount);
+            FloatBuffer documentLengths = sliceFloats(buffer, packCount);
+            String[] searchNames = new String[packCount];
+            for (int i = 0; i < packCount; i++)
+                searchNames[i] = strings[buffer.getInt()];
+
+            return new VTCatalogSnapshot(packs, foldedIds, foldedNames, lookupTable,
+                    new SearchIndex.Tables(terms, termStarts, postingDocs, postingWeights,
+                            documentLengths, searchNames));
+        } catch (RuntimeException ex) {
+            // Truncated or otherwise corrupt
+            throw new IOException("'" + snapshotFile + "' is corrupt", ex);
+        }
+    }
+
+    /**
+     * @return The packs in the snapshot, in catalog order
+     */
+    public List<Pack> getPacks() {
+        return packs;
+    }
+
+    /**
+     * @return An index of the packs in the snapshot that searches its saved tables
+     */
+    public synchronized SearchIndex getSearchIndex() {
+        if (searchIndex == null)
+            searchIndex = SearchIndex.fromTables(searchTables, packs);
+        return searchIndex;
+    }
+
+    /**
+     * Finds packs by their full ID or short name, ignoring case. This behaves the same as
+     * {@link PackIndex#find(String)}
+     * 
+     * @return Every pack that matches. More than one pack means the short name is ambiguous
+     */
+    public List<Pack> find(String packId) {
+        String key = packId.toLowerCase();
+        int mask = lookupTable.limit() - 1;
+        List<Pack> found = new ArrayList<Pack>(1);
+        for (int slot = key.hashCode() & mask; lookupTable.get(slot) != 0;
+                slot = (slot + 1) & mask) {
+            int index = lookupTable.get(slot) - 1;
+            // A full ID always wins over short names
+            if (foldedIds[index].equals(key))
+                return Collections.singletonList(packs.get(index));
+            if (foldedNames[index].equals(key) && !found.contains(packs.get(index)))
+                found.add(packs.get(index));
+        }
+        return found;
+    }
+}
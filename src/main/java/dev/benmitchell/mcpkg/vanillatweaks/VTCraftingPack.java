@@ -1,10 +1,9 @@
 package dev.benmitchell.mcpkg.vanillatweaks;
 
-import java.io.IOException;
+import java.nio.file.Path;
 
 import dev.benmitchell.mcpkg.Platform;
 import dev.benmitchell.mcpkg.exceptions.InvalidDirectoryException;
-import dev.benmitchell.mcpkg.exceptions.PackNotDownloadedException;
 import dev.benmitchell.mcpkg.packs.PackType;
 import dev.benmitchell.mcpkg.vanillatweaks.VTSource.VTJson.Category.RemotePack;
 
@@ -14,8 +13,7 @@ public class VTCraftingPack extends VTPack {
     }
 
     @Override
-    public void install()
-            throws IOException, InvalidDirectoryException, PackNotDownloadedException {
-        installTo(Platform.getDataPacksDir());
+    public Path getInstallDir() throws InvalidDirectoryException {
+        return Platform.getDataPacksDir();
     }
 }
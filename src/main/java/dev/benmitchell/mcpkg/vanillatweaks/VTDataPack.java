@@ -1,20 +1,22 @@
 package dev.benmitchell.mcpkg.vanillatweaks;
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.lang.System.Logger.Level;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Collections;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
+import org.apache.commons.io.FilenameUtils;
+
+import dev.benmitchell.mcpkg.MCPKGLogger;
 import dev.benmitchell.mcpkg.Platform;
 import dev.benmitchell.mcpkg.exceptions.InvalidDirectoryException;
 import dev.benmitchell.mcpkg.exceptions.PackNotDownloadedException;
 import dev.benmitchell.mcpkg.packs.PackType;
+import dev.benmitchell.mcpkg.packs.ZipCentralDirectory;
 import dev.benmitchell.mcpkg.vanillatweaks.VTSource.VTJson.Category.RemotePack;
 
 public class VTDataPack extends VTPack {
@@ -22,25 +24,55 @@ public class VTDataPack extends VTPack {
         super(jsonPack, PackType.DATAPACK, category);
     }
 
+    /**
+     * Stages the data pack out of its download. A download is either the data pack itself, or a
+     * zip of one or more data pack zips. In the latter case the inner zip named after this pack is
+     * staged as the pack, and any others are staged alongside it under their own names. The inner
+     * zips are found through the central directory and copied out without recompressing, and are
+     * hashed as they're copied
+     */
     @Override
-    public void installTo(Path destination) throws IOException, PackNotDownloadedException {
-        File newZipLoc = Files.createTempFile("mcpkg", ".zip").toFile();
-
-        try (ZipFile zf = new ZipFile(getDownloadedData())) {
-            for (ZipEntry entry : Collections.list(zf.entries()))
-                try (InputStream zis = zf.getInputStream(entry);
-                        OutputStream zos = new FileOutputStream(newZipLoc)) {
-                    zis.transferTo(zos);
+    protected Map<Path, String> stage(Path stagingDir)
+            throws IOException, PackNotDownloadedException {
+        Path download = getDownloadedData().toPath();
+        Map<Path, String> stagedFiles = new LinkedHashMap<Path, String>();
+        Path primaryFile = stagingDir.resolve(toString() + ".zip");
+        try (ZipCentralDirectory zip = ZipCentralDirectory.open(download)) {
+            List<ZipCentralDirectory.Entry> innerPacks = new ArrayList<ZipCentralDirectory.Entry>();
+            // A zip with a pack.mcmeta at its root is already the data pack
+            if (zip.getEntry("pack.mcmeta") == null)
+                for (ZipCentralDirectory.Entry entry : zip.getEntries())
+                    if (!entry.isDirectory()
+                            && FilenameUtils.getExtension(entry.getName()).equals("zip"))
+                        innerPacks.add(entry);
+            if (innerPacks.isEmpty())
+                return super.stage(stagingDir);
+
+            ZipCentralDirectory.Entry primary = innerPacks.get(0);
+            for (ZipCentralDirectory.Entry entry : innerPacks)
+                if (VTSource.matchBundleEntry(entry.getName(), List.of(this)) != null) {
+                    primary = entry;
+                    break;
                 }
+
+            stagedFiles.put(primaryFile, zip.extract(primary, primaryFile));
+            for (ZipCentralDirectory.Entry entry : innerPacks) {
+                if (entry == primary)
+                    continue;
+                Path extraFile = stagingDir.resolve(FilenameUtils.getName(entry.getName()));
+                MCPKGLogger.log(Level.INFO,
+                        "Installing '" + extraFile.getFileName() + "' from '" + this + "'...");
+                stagedFiles.put(extraFile, zip.extract(entry, extraFile));
+            }
         }
 
-        setDownloadedData(newZipLoc);
-        super.installTo(destination);
+        Files.delete(download);
+        setDownloadedData(primaryFile.toFile(), stagedFiles.get(primaryFile));
+        return stagedFiles;
     }
 
     @Override
-    public void install()
-            throws IOException, InvalidDirectoryException, PackNotDownloadedException {
-        installTo(Platform.getDataPacksDir());
+    public Path getInstallDir() throws InvalidDirectoryException {
+        return Platform.getDataPacksDir();
     }
 }
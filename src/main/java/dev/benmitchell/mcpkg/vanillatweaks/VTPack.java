@@ -20,6 +20,9 @@ public abstract class VTPack extends Pack {
         for (var item : jsonPack.incompatible) {
             incompatible.add(item);
         }
+        for (var item : jsonPack.requires) {
+            dependencies.add(item);
+        }
 
         this.category = category;
     }
@@ -28,6 +31,7 @@ public abstract class VTPack extends Pack {
         return name;
     }
 
+    @Override
     public String getCategory() {
         return category;
     }
@@ -1,10 +1,8 @@
 package dev.benmitchell.mcpkg.vanillatweaks;
 
-import java.io.IOException;
+import java.nio.file.Path;
 
 import dev.benmitchell.mcpkg.Platform;
-import dev.benmitchell.mcpkg.exceptions.InvalidDirectoryException;
-import dev.benmitchell.mcpkg.exceptions.PackNotDownloadedException;
 import dev.benmitchell.mcpkg.packs.PackType;
 import dev.benmitchell.mcpkg.vanillatweaks.VTSource.VTJson.Category.RemotePack;
 
@@ -14,8 +12,7 @@ public class VTResourcePack extends VTPack {
     }
 
     @Override
-    public void install()
-            throws IOException, InvalidDirectoryException, PackNotDownloadedException {
-        installTo(Platform.getResourcePacksDir());
+    public Path getInstallDir() {
+        return Platform.getResourcePacksDir();
     }
 }
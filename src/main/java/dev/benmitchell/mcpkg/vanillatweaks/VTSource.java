@@ -1,30 +1,42 @@
 package dev.benmitchell.mcpkg.vanillatweaks;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.Reader;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.lang.System.Logger.Level;
 import java.net.URISyntaxException;
 import java.net.URL;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import org.apache.commons.io.FilenameUtils;
+
 import dev.benmitchell.mcpkg.DownloadManager;
 import dev.benmitchell.mcpkg.MCPKGLogger;
 import dev.benmitchell.mcpkg.Platform;
+import dev.benmitchell.mcpkg.exceptions.MCPKGException;
+import dev.benmitchell.mcpkg.exceptions.PackNotFoundException;
 import dev.benmitchell.mcpkg.packs.Pack;
 import dev.benmitchell.mcpkg.packs.PackType;
+import dev.benmitchell.mcpkg.packs.ZipCentralDirectory;
 import dev.benmitchell.mcpkg.sources.RemoteSource;
+import dev.benmitchell.mcpkg.sources.SearchIndex;
 
 public class VTSource extends RemoteSource {
     public static class VTJson {
@@ -55,7 +67,13 @@ public class VTSource extends RemoteSource {
         public List<Category> categories;
     }
 
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final String SNAPSHOT_FILE_NAME = "vt_catalog.snapshot";
+
     private List<Pack> packs = null;
+    private long packsLoaded = 0;
+    private VTCatalogSnapshot snapshot = null;
 
     public class VTRemoteException extends RuntimeException {
         public VTRemoteException(String errorMessage) {
@@ -70,109 +88,389 @@ public class VTSource extends RemoteSource {
         TYPE_INITIAL_MAP.put("dp", PackType.DATAPACK);
         TYPE_INITIAL_MAP.put("ct", PackType.CRAFTINGTWEAK);
     }
+    private static final String[] CATALOG_TYPES = {"rp", "dp", "ct"};
+
+    /**
+     * Runs background catalog refreshes. Created on the first refresh, along with a single
+     * shutdown hook that waits for the refreshes still running when the program exits, so they
+     * aren't cut short by a command that finishes first
+     */
+    private static class Refresher {
+        static final ExecutorService EXECUTOR =
+                Executors.newFixedThreadPool(CATALOG_TYPES.length, runnable -> {
+                    Thread thread = new Thread(runnable, "mcpkg-catalog-refresh");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        // Catalog files being refreshed, so that a long-running process doesn't queue another
+        // refresh of the same file while one is in progress
+        static final Set<File> PENDING = ConcurrentHashMap.newKeySet();
+
+        static {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                EXECUTOR.shutdown();
+                try {
+                    EXECUTOR.awaitTermination(
+                            Platform.getConfig().connectTimeout + Platform.getConfig().readTimeout,
+                            TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ex) {
+                    // Give up on the refreshes, they'll be tried again next time
+                }
+            }));
+        }
+    }
+
+    /**
+     * Revalidates a catalog file in the background, unless it's already being revalidated
+     */
+    private static void revalidateInBackground(URL catalogUrl, File packCacheFile,
+            String downloadMessage) {
+        if (!Refresher.PENDING.add(packCacheFile))
+            return;
+        Refresher.EXECUTOR.execute(() -> {
+            try {
+                DownloadManager.revalidateFile(catalogUrl, packCacheFile, downloadMessage);
+            } catch (IOException ex) {
+                MCPKGLogger.log(Level.WARNING,
+                        "Couldn't refresh '" + packCacheFile + "': " + ex.getMessage());
+            } finally {
+                Refresher.PENDING.remove(packCacheFile);
+            }
+        });
+    }
+
+    /**
+     * Gets the cached catalog file for a type of pack, downloading it if it doesn't exist. Once
+     * the file is older than the config's {@code catalogTtl} seconds it's revalidated with the
+     * server, either before it's used or, with {@code catalogStaleWhileRevalidate}, in the
+     * background while the stale copy is used
+     * 
+     * @param typeInitials "rp", "dp" or "ct"
+     */
+    private static File getCatalogFile(String typeInitials) throws IOException {
+        File packCacheFile = new File(Platform.getConfig().dataPath.toFile(),
+                "vt_" + typeInitials + "categories.json");
+        URL catalogUrl = new URL(Platform.getConfig().vanillaTweaksUrl
+                + "/assets/resources/json/1.18/" + typeInitials + "categories.json");
+        String downloadMessage = "Downloading '" + catalogUrl + "' to '" + packCacheFile + "'...";
+
+        if (!packCacheFile.exists()) {
+            DownloadManager.revalidateFile(catalogUrl, packCacheFile, downloadMessage);
+            return packCacheFile;
+        }
+
+        long age = System.currentTimeMillis() - packCacheFile.lastModified();
+        if (age <= Platform.getConfig().catalogTtl * 1000)
+            return packCacheFile;
+
+        if (Platform.getConfig().catalogStaleWhileRevalidate) {
+            revalidateInBackground(catalogUrl, packCacheFile, downloadMessage);
+            return packCacheFile;
+        }
 
+        try {
+            DownloadManager.revalidateFile(catalogUrl, packCacheFile, downloadMessage);
+        } catch (IOException ex) {
+            MCPKGLogger.log(Level.WARNING, "Couldn't refresh '" + packCacheFile + "' ("
+                    + ex.getMessage() + "). Using the cached copy...");
+        }
+        return packCacheFile;
+    }
+
+    /**
+     * Reads the catalog for a type of pack
+     * 
+     * @param packCacheFile The catalog file
+     * @param typeInitials "rp", "dp" or "ct"
+     * @return The packs in the catalog, in catalog order
+     */
+    private static List<Pack> readCatalog(File packCacheFile, String typeInitials)
+            throws IOException {
+        try (InputStream iStream = new BufferedInputStream(new FileInputStream(packCacheFile))) {
+            return VTCatalogReader.read(iStream, TYPE_INITIAL_MAP.get(typeInitials));
+        }
+    }
+
+    /**
+     * Waits for every task to finish, rethrowing the first exception that any of them threw
+     * 
+     * @return The results of the tasks, in the order they were given
+     */
+    private static <T> List<T> getAll(List<Future<T>> futures) throws IOException {
+        List<T> results = new ArrayList<T>(futures.size());
+        try {
+            for (Future<T> future : futures)
+                results.add(future.get());
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException)
+                throw (IOException) ex.getCause();
+            if (ex.getCause() instanceof RuntimeException)
+                throw (RuntimeException) ex.getCause();
+            throw new RuntimeException(ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while loading the catalog");
+        }
+        return results;
+    }
+
+    /**
+     * Fetches the resource pack, data pack and crafting tweak catalogs at the same time. If the
+     * catalog snapshot is newer than all three, the packs are read from that. Otherwise the
+     * catalogs are parsed at the same time and a new snapshot is written. The result is always in
+     * rp, dp, ct order, whichever catalog finishes first
+     */
     @Override
-    public List<Pack> getPacks() throws IOException {
-        if (packs != null) {
+    public synchronized List<Pack> getPacks() throws IOException {
+        // A long-running process picks up catalog changes once the catalog has expired
+        if (packs != null && System.currentTimeMillis() - packsLoaded
+                <= Platform.getConfig().catalogTtl * 1000)
             return packs;
-        }
-        packs = new ArrayList<Pack>();
+        packsLoaded = System.currentTimeMillis();
+
+        ExecutorService executor = Executors.newFixedThreadPool(CATALOG_TYPES.length);
+        try {
+            List<Future<File>> catalogFileFutures = new ArrayList<Future<File>>();
+            for (String typeInitials : CATALOG_TYPES)
+                catalogFileFutures.add(executor.submit(() -> getCatalogFile(typeInitials)));
+            List<File> catalogFiles = getAll(catalogFileFutures);
 
-        // Download the pack cache if it doesn't exist, or the date last modified on the
-        // file is > 1 day
-        for (String typeInitials : new String[] {"rp", "dp", "ct"}) {
-            File packCacheFile = new File(Platform.config.dataPath.toFile(),
-                    "vt_" + typeInitials + "categories.json");
-            if (!packCacheFile.exists() || Calendar.getInstance().getTimeInMillis()
-                    - packCacheFile.lastModified() > 1000 * 24 * 60 * 60) {
+            Path snapshotFile = Platform.getConfig().dataPath.resolve(SNAPSHOT_FILE_NAME);
+            if (VTCatalogSnapshot.isNewerThan(snapshotFile, catalogFiles)) {
                 try {
-                    DownloadManager
-                            .downloadToFile(
-                                    new URL("https://vanillatweaks.net/assets/resources/json/1.18/"
-                                            + typeInitials + "categories.json"),
-                                    packCacheFile, false);
+                    snapshot = VTCatalogSnapshot.read(snapshotFile);
+                    packs = snapshot.getPacks();
+                    return packs;
                 } catch (IOException ex) {
-                    throw new RuntimeException(ex);
+                    MCPKGLogger.log(Level.DEBUG, ex.getMessage() + ". Rebuilding it...");
                 }
             }
 
-            // JSON convert the file
-            ObjectMapper mapper = new ObjectMapper();
-            VTJson jsonData;
-            try (Reader reader = new BufferedReader(new FileReader(packCacheFile))) {
-                jsonData = mapper.readValue(reader, VTJson.class);
+            snapshot = null;
+            List<Future<List<Pack>>> catalogs = new ArrayList<Future<List<Pack>>>();
+            for (int i = 0; i < CATALOG_TYPES.length; i++) {
+                File catalogFile = catalogFiles.get(i);
+                String typeInitials = CATALOG_TYPES[i];
+                catalogs.add(executor.submit(() -> readCatalog(catalogFile, typeInitials)));
             }
 
-            // Build the list of packs
-            for (var category : jsonData.categories) {
-                for (var pack : category.packs) {
-                    PackType pType = TYPE_INITIAL_MAP.get(typeInitials);
-                    switch (pType) {
-                        case CRAFTINGTWEAK:
-                            packs.add(new VTCraftingPack(pack, category.category));
-                            break;
-                        case DATAPACK:
-                            packs.add(new VTDataPack(pack, category.category));
-                            break;
-                        case RESOURCEPACK:
-                            packs.add(new VTResourcePack(pack, category.category));
-                            break;
-                        default:
-                            throw new RuntimeException(
-                                    "This packtype (" + pType.toString() + ") is not valid");
-                    }
-                }
-            }
+            List<Pack> allPacks = new ArrayList<Pack>();
+            for (List<Pack> catalog : getAll(catalogs))
+                allPacks.addAll(catalog);
+            packs = allPacks;
+        } finally {
+            executor.shutdownNow();
         }
 
+        try {
+            VTCatalogSnapshot.write(
+                    Platform.getConfig().dataPath.resolve(SNAPSHOT_FILE_NAME), packs);
+        } catch (IOException ex) {
+            MCPKGLogger.log(Level.WARNING,
+                    "Couldn't write the catalog snapshot: " + ex.getMessage());
+        }
         return packs;
     }
 
+    /**
+     * Looks the pack up in the snapshot's lookup table when the catalog came from a snapshot
+     */
     @Override
-    public List<Pack> downloadPacks(List<Pack> packs) throws IOException {
-        Path tmpDir = Files.createTempDirectory("mcpkg");
+    public Pack getPack(String packId) throws IOException, PackNotFoundException {
+        getPacks();
+        if (snapshot == null)
+            return super.getPack(packId);
 
-        ObjectMapper mapper = new ObjectMapper();
+        return selectPack(packId, snapshot.find(packId));
+    }
 
-        for (Pack pack : packs) {
-            String typeString = pack.getPackType().toString().toLowerCase();
-
-            // Create list of packs for the request
-            VTPack vtPack = (VTPack) pack;
-            Map<String, List<String>> packListMap = new HashMap<String, List<String>>();
-            List<String> requestList = new ArrayList<String>(1);
-            requestList.add(vtPack.getName());
-            packListMap.put(vtPack.getCategory(), requestList);
-            String packListJson = mapper.writeValueAsString(packListMap);
-
-            // Create request
-            Map<String, String> postMap = new HashMap<String, String>();
-            postMap.put("version", "1.17");
-            postMap.put("packs", packListJson);
-
-            // Post request
-            URL requestUrl =
-                    new URL("https://vanillatweaks.net/assets/server/zip" + typeString + "s.php");
-            String response;
-            try {
-                response = DownloadManager.postRequest(requestUrl, postMap);
-            } catch (URISyntaxException ex) {
-                MCPKGLogger.log(Level.ERROR, "Request URL: '" + requestUrl + "' is invalid");
-                throw new RuntimeException(ex);
+    @Override
+    public boolean hasPack(String packId) throws IOException {
+        getPacks();
+        if (snapshot == null)
+            return super.hasPack(packId);
+        return !snapshot.find(packId).isEmpty();
+    }
+
+    /**
+     * Searches the tables saved in the snapshot when the catalog came from a snapshot, rather
+     * than indexing every pack again
+     */
+    @Override
+    protected synchronized SearchIndex getSearchIndex() throws IOException {
+        List<Pack> packs = getPacks();
+        if (snapshot != null && packs == snapshot.getPacks())
+            return snapshot.getSearchIndex();
+        return super.getSearchIndex();
+    }
+
+    /**
+     * Asks vanillatweaks.net to build a zip of the given packs
+     * 
+     * @param packType The type of every pack in the request
+     * @param packListMap A map of categories to the names of the packs to request from them
+     * @return The URL that the built zip can be downloaded from
+     */
+    private URL requestZip(PackType packType, Map<String, List<String>> packListMap)
+            throws IOException {
+        String typeString = packType.toString().toLowerCase();
+
+        // Create request
+        Map<String, String> postMap = new HashMap<String, String>();
+        postMap.put("version", "1.17");
+        postMap.put("packs", MAPPER.writeValueAsString(packListMap));
+
+        // Post request
+        URL requestUrl = new URL(Platform.getConfig().vanillaTweaksUrl + "/assets/server/zip"
+                + typeString + "s.php");
+        String response;
+        try {
+            response = DownloadManager.postRequest(requestUrl, postMap);
+        } catch (URISyntaxException ex) {
+            MCPKGLogger.log(Level.ERROR, "Request URL: '" + requestUrl + "' is invalid");
+            throw new RuntimeException(ex);
+        }
+        JsonNode responseNode = MAPPER.readTree(response);
+
+        if (responseNode.get("status").asText().equals("error"))
+            throw new VTRemoteException(responseNode.get("message").asText("No error message"));
+
+        return new URL(
+                Platform.getConfig().vanillaTweaksUrl + "/" + responseNode.get("link").asText());
+    }
+
+    @Override
+    protected void downloadPack(Pack pack, Path downloadDir) throws IOException {
+        // Create list of packs for the request
+        VTPack vtPack = (VTPack) pack;
+        Map<String, List<String>> packListMap = new HashMap<String, List<String>>();
+        List<String> requestList = new ArrayList<String>(1);
+        requestList.add(vtPack.getName());
+        packListMap.put(vtPack.getCategory(), requestList);
+
+        File downloadedFile = downloadDir.resolve(vtPack + ".zip").toFile();
+
+        String sha256 = DownloadManager.downloadToFile(requestZip(pack.getPackType(), packListMap),
+                downloadedFile, false, "Downloading '" + pack + "'...");
+
+        vtPack.setDownloadedData(downloadedFile, sha256);
+    }
+
+    /**
+     * Strips everything but letters and digits so that pack names can be matched against the
+     * names of the zips inside a bundle
+     */
+    private static String normaliseName(String name) {
+        StringBuilder builder = new StringBuilder(name.length());
+        for (char c : name.toCharArray())
+            if (Character.isLetterOrDigit(c))
+                builder.append(Character.toLowerCase(c));
+        return builder.toString();
+    }
+
+    /**
+     * Finds the pack that an inner zip of a data pack bundle belongs to. Bundle entries are named
+     * after the pack followed by its version, so the longest pack name that prefixes the entry
+     * name wins ("afk display plus" over "afk display")
+     */
+    static VTPack matchBundleEntry(String entryName, List<VTPack> packs) {
+        String normalisedEntry = normaliseName(FilenameUtils.getName(entryName));
+        VTPack bestMatch = null;
+        int bestLength = 0;
+        for (VTPack pack : packs) {
+            for (String candidate : new String[] {pack.getName(), pack.getDisplayName()}) {
+                String normalisedCandidate = normaliseName(candidate);
+                if (normalisedCandidate.length() > bestLength
+                        && normalisedEntry.startsWith(normalisedCandidate)) {
+                    bestMatch = pack;
+                    bestLength = normalisedCandidate.length();
+                }
             }
-            JsonNode responseNode = mapper.readTree(response);
+        }
+        return bestMatch;
+    }
 
-            if (responseNode.get("status").asText().equals("error"))
-                throw new VTRemoteException(responseNode.get("message").asText("No error message"));
+    /**
+     * Downloads every given data pack with a single request, then copies each pack's inner zip out
+     * of the bundle through its central directory. Each pack's downloaded data is its data pack
+     * zip itself, which {@link VTDataPack#stage(Path)} stages as it is
+     * 
+     * @return The packs that were split out of the bundle, which haven't been handed to the
+     *         listener yet
+     */
+    private List<VTPack> downloadDataPackBundle(List<VTPack> dataPacks, Path downloadDir)
+            throws IOException, MCPKGException {
+        Map<String, List<String>> packListMap = new HashMap<String, List<String>>();
+        for (VTPack pack : dataPacks)
+            packListMap.computeIfAbsent(pack.getCategory(), category -> new ArrayList<String>())
+                    .add(pack.getName());
 
-            File downloadedFile = tmpDir.resolve(vtPack + ".zip").toFile();
+        File bundleFile = downloadDir.resolve("bundle.zip").toFile();
+        DownloadManager.downloadToFile(requestZip(PackType.DATAPACK, packListMap), bundleFile,
+                false, "Downloading " + dataPacks.size() + " data packs...");
 
-            DownloadManager.downloadToFile(
-                    new URL("https://vanillatweaks.net/" + responseNode.get("link").asText()),
-                    downloadedFile, false, "Downloading '" + pack + "'...");
+        List<VTPack> remaining = new ArrayList<VTPack>(dataPacks);
+        List<VTPack> split = new ArrayList<VTPack>();
+        try (ZipCentralDirectory bundle = ZipCentralDirectory.open(bundleFile.toPath())) {
+            for (ZipCentralDirectory.Entry entry : bundle.getEntries()) {
+                if (entry.isDirectory()
+                        || !FilenameUtils.getExtension(entry.getName()).equals("zip"))
+                    continue;
+                VTPack pack = matchBundleEntry(entry.getName(), remaining);
+                if (pack == null)
+                    continue;
 
-            vtPack.setDownloadedData(downloadedFile);
+                Path packFile = downloadDir.resolve(pack + ".zip");
+                pack.setDownloadedData(packFile.toFile(), bundle.extract(entry, packFile));
+                remaining.remove(pack);
+                split.add(pack);
+            }
+        } finally {
+            bundleFile.delete();
         }
-        return packs;
+        return split;
+    }
+
+    /**
+     * When {@code Platform.getConfig().batchDownloads} is set, all requested data packs are fetched
+     * with one request instead of one request each. Resource packs and crafting tweaks are merged
+     * into a single pack by vanillatweaks.net, so they can't be split apart again and are always
+     * downloaded individually
+     */
+    @Override
+    protected void downloadUncachedPacks(List<Pack> packs, Path downloadDir,
+            DownloadListener listener) throws IOException, MCPKGException {
+        List<VTPack> dataPacks = new ArrayList<VTPack>();
+        List<Pack> individualPacks = new ArrayList<Pack>();
+        for (Pack pack : packs) {
+            if (pack.getPackType() == PackType.DATAPACK)
+                dataPacks.add((VTPack) pack);
+            else
+                individualPacks.add(pack);
+        }
+
+        if (!Platform.getConfig().batchDownloads || dataPacks.size() < 2) {
+            super.downloadUncachedPacks(packs, downloadDir, listener);
+            return;
+        }
+
+        List<VTPack> split;
+        try {
+            split = downloadDataPackBundle(dataPacks, downloadDir);
+        } catch (IOException | VTRemoteException ex) {
+            MCPKGLogger.log(Level.WARNING, "Couldn't download data packs as a bundle ("
+                    + ex.getMessage() + "). Downloading individually...");
+            split = List.of();
+        }
+
+        // Only a failed download or split falls back to downloading individually. A pack that
+        // fails in the listener has already been downloaded, so it isn't downloaded again
+        for (Pack pack : dataPacks)
+            if (!split.contains(pack))
+                individualPacks.add(pack);
+        for (VTPack pack : split)
+            listener.packDownloaded(pack);
+
+        super.downloadUncachedPacks(individualPacks, downloadDir, listener);
     }
 }